@@ -0,0 +1,156 @@
+package JiraTestResultReporter;
+
+import com.google.common.base.Predicates;
+import com.isti.jira.FailureSet;
+import com.isti.jira.FlakeHistory;
+import com.isti.jira.Logger;
+import com.isti.jira.RepoDetails;
+import com.isti.jira.Trace;
+import com.isti.jira.UniformTestResult;
+import hudson.model.TaskListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+
+/**
+ * A sync that runs on the build's agent, so that the Jira traffic (and the threads and memory it needs)
+ * is spread across the agents rather than concentrated on the controller.
+ *
+ * The failures are sent already filtered, deduplicated and rendered, along with a copy of the pass/fail
+ * history, so the agent needs nothing else from the controller; only a flag and the timing of the agent's
+ * calls come back (see Trace.graft()).  Agent syncs are not journalled: if one doesn't finish, the build
+ * isn't marked clean and the next build tries again.
+ *
+ * The settings are resolved on the controller (see JiraSync), so the agent's own defaults file is never
+ * read.  Only the agent knows which failures already have issues, so the summary and description of every
+ * distinct failure are rendered on the controller and sent, not just those that turn out to need an issue;
+ * for builds with many long-standing failures this costs more controller time and channel traffic than a
+ * sync on the controller.  (The fast path still applies: an unchanged build sends nothing.)
+ */
+final class AgentSync extends MasterToSlaveCallable<AgentSync.Result, RuntimeException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The settings for the sync. */
+    private final JiraSync sync;
+
+    /** The name of the job being reported. */
+    private final String job;
+
+    /** Identifies the Jira project and git branch. */
+    private final String target;
+
+    /** The git repository details. */
+    private final RepoDetails repo;
+
+    /** The summary, description, error and new flag of each distinct failure. */
+    private final ArrayList<String[]> payloads = new ArrayList<String[]>();
+
+    /** A copy of the pass/fail history for the target. */
+    private final FlakeHistory history;
+
+    /** Destination for messages (the build log). */
+    private final TaskListener listener;
+
+    /** Whether debug messages should be displayed. */
+    private final boolean debugFlag;
+
+    /**
+     * @param sync The settings for the sync.
+     * @param job The name of the job being reported.
+     * @param target Identifies the Jira project and git branch.
+     * @param failures The (filtered) failed tests, before classification.
+     * @param history The pass/fail history for the target (copied).
+     * @param listener Destination for messages (the build log).
+     * @param debugFlag Whether debug messages should be displayed.
+     */
+    AgentSync(final JiraSync sync,
+              final String job,
+              final String target,
+              final FailureSet failures,
+              final FlakeHistory history,
+              final TaskListener listener,
+              final boolean debugFlag) {
+        this.sync = sync;
+        this.job = job;
+        this.target = target;
+        this.repo = failures.getRepo();
+        for (UniformTestResult result : failures.getResults()) {
+            payloads.add(new String[]{result.getSummary(), result.getDescription(), result.getError(),
+                                      Boolean.toString(result.isNew())});
+        }
+        this.history = history.copy();
+        this.listener = listener;
+        this.debugFlag = debugFlag;
+    }
+
+    /**
+     * What comes back from the agent.
+     */
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** True if Jira now matches the failures. */
+        private final boolean clean;
+
+        /** The timing of the sync on the agent, encoded. */
+        private final String trace;
+
+        /**
+         * @param clean True if Jira now matches the failures.
+         * @param trace The timing of the sync on the agent, encoded.
+         */
+        private Result(final boolean clean, final String trace) {
+            this.clean = clean;
+            this.trace = trace;
+        }
+
+        /**
+         * @return True if Jira now matches the failures.
+         */
+        boolean isClean() {
+            return clean;
+        }
+
+        /**
+         * @return The timing of the sync on the agent, encoded.
+         */
+        String getTrace() {
+            return trace;
+        }
+
+    }
+
+    @Override
+    public Result call() {
+        Logger logger = new Logger(job, listener.getLogger(), debugFlag);
+        // already filtered on the controller
+        FailureSet failures = new FailureSet(repo, Predicates.<UniformTestResult>alwaysFalse(), logger);
+        for (String[] payload : payloads) {
+            failures.add(new UniformTestResult(payload[0], payload[1], payload[2], Boolean.parseBoolean(payload[3])));
+        }
+        // timed here, since the agent's thread locals and clock are its own
+        Trace trace = new Trace();
+        Trace.Span root = trace.root("agent");
+        Trace.Span previous = Trace.resume(root);
+        boolean clean;
+        try {
+            JiraLookups lookups = sync.startLookups(repo);
+            try {
+                // the controller holds the target's lock while we run (issues are not refreshed from agents)
+                clean = sync.synchroniseLocked(job, target, failures, lookups, sync.getDeadline(), history, null,
+                                               null, logger);
+            } finally {
+                lookups.close();
+            }
+        } finally {
+            root.end();
+            Trace.resume(previous);
+        }
+        return new Result(clean, trace.encode());
+    }
+
+}
@@ -0,0 +1,109 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.ContentCache;
+import com.isti.jira.FlakeHistory;
+import com.isti.jira.Journal;
+import com.isti.jira.OccurrenceStore;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * State kept on the controller (under JENKINS_HOME) that outlives individual builds.
+ */
+final class ControllerState {
+
+    /** The directory, relative to JENKINS_HOME, where state is kept. */
+    static final String DIRECTORY = "JiraTestResultReporter";
+
+    /** The journal of pending Jira operations (created on first use). */
+    private static Journal journal = null;
+
+    /** The pass/fail history for each target (loaded on first use). */
+    private static final Map<String, FlakeHistory> HISTORIES = new HashMap<String, FlakeHistory>();
+
+    /** When each failure occurred (created on first use). */
+    private static OccurrenceStore occurrences = null;
+
+    /** The reporter last run by a Pipeline step, by job and scope (the job's configuration doesn't have it). */
+    private static final Map<String, JiraReporter> STEP_REPORTERS = new HashMap<String, JiraReporter>();
+
+    /**
+     * Hide constructor for utility class.
+     */
+    private ControllerState() {
+    }
+
+    /**
+     * @return The directory where state is kept.
+     */
+    static File getDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), DIRECTORY);
+    }
+
+    /**
+     * @return The journal of pending Jira operations.
+     */
+    static synchronized Journal getJournal() {
+        if (journal == null) {
+            journal = new Journal(new File(getDirectory(), "journal.txt"));
+        }
+        return journal;
+    }
+
+    /**
+     * @return When each failure occurred.
+     */
+    static synchronized OccurrenceStore getOccurrences() {
+        if (occurrences == null) {
+            occurrences = new OccurrenceStore(new File(getDirectory(), "occurrences"));
+        }
+        return occurrences;
+    }
+
+    /**
+     * @param target Identifies the Jira project and git branch.
+     * @return The pass/fail history for the target.
+     */
+    static synchronized FlakeHistory getHistory(final String target) {
+        FlakeHistory history = HISTORIES.get(target);
+        if (history == null) {
+            // the target contains URLs, so use a hash for the file name
+            history = new FlakeHistory(new File(new File(getDirectory(), "history"), DigestUtils.shaHex(target)));
+            HISTORIES.put(target, history);
+        }
+        return history;
+    }
+
+    /**
+     * @param job The full name of the Pipeline job.
+     * @param scope The part of the build whose results were reported (null for all).
+     * @param reporter The reporter the step ran, for replaying its operations.
+     */
+    static synchronized void putStepReporter(final String job, final String scope, final JiraReporter reporter) {
+        STEP_REPORTERS.put(job + "\n" + scope, reporter);
+    }
+
+    /**
+     * @param job The full name of the Pipeline job.
+     * @param scope The part of the build whose results were reported (null for all).
+     * @return The reporter the step last ran (null if it hasn't run since Jenkins started).
+     */
+    static synchronized JiraReporter getStepReporter(final String job, final String scope) {
+        return STEP_REPORTERS.get(job + "\n" + scope);
+    }
+
+    /**
+     * @param target Identifies the Jira project and git branch.
+     * @return The content last written to each of the target's issues (read from disk each time; callers
+     *         hold the target's lock).
+     */
+    static ContentCache getContentCache(final String target) {
+        return new ContentCache(new File(new File(getDirectory(), "content"), DigestUtils.shaHex(target)));
+    }
+
+}
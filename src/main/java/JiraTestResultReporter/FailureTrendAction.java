@@ -0,0 +1,55 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.OccurrenceStore;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+
+import java.util.Collection;
+
+
+/**
+ * A page on the job that lists every failure seen by the reporter, with when it was first and last seen
+ * and how often it fails.  The data come from the OccurrenceStore, so old builds are never loaded.
+ */
+public final class FailureTrendAction implements Action {
+
+    /** The job. */
+    private final AbstractProject<?, ?> project;
+
+    /**
+     * @param project The job.
+     */
+    public FailureTrendAction(final AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * @return The job.
+     */
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return The history of each failure, most recently seen first.
+     */
+    public Collection<OccurrenceStore.Stats> getFailures() {
+        return ControllerState.getOccurrences().query(project.getFullName()).values();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Failure History";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "failure-history";
+    }
+
+}
@@ -0,0 +1,96 @@
+package JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.isti.jira.ContentCache;
+import com.isti.jira.JiraClient;
+import com.isti.jira.Logger;
+import com.isti.jira.RepoDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.isti.jira.JiraClient.CATS_HASH;
+import static java.lang.String.format;
+
+
+/**
+ * Brings the issues of failures that are still failing up to date with the latest build: the commit, a
+ * link to the build and the number of builds in which the failure occurred.  The link and count change with
+ * every build, so only the commit is compared with what was last written (according to a local cache of
+ * content hashes): an issue is updated when it fails on a new commit, and the link and count are brought up
+ * to date then.  Builds of the same commit write nothing.
+ */
+final class IssueRefresh {
+
+    /** The git repository details (for the commit). */
+    private final RepoDetails repo;
+
+    /** The URL of the build. */
+    private final String build;
+
+    /** The number of builds in which each current failure occurred, by hash. */
+    private final Map<String, Integer> counts;
+
+    /** Identifies the Jira project and git branch. */
+    private final String target;
+
+    /**
+     * @param repo The git repository details (for the commit).
+     * @param build The URL of the build.
+     * @param counts The number of builds in which each current failure occurred, by hash.
+     * @param target Identifies the Jira project and git branch.
+     */
+    IssueRefresh(final RepoDetails repo,
+                 final String build,
+                 final Map<String, Integer> counts,
+                 final String target) {
+        this.repo = repo;
+        this.build = build;
+        this.counts = counts;
+        this.target = target;
+    }
+
+    /**
+     * Update the issues whose content changed, until the deadline passes.  The caller holds the target's
+     * lock, so the cache is read here rather than when the refresh is created.
+     *
+     * @param client The connection to Jira.
+     * @param existingIssues The unresolved issues for the target.
+     * @param deadline The time (in ms) by which we should stop.
+     * @param logger Destination for messages.
+     * @return True if every issue is up to date (none were left for lack of time).
+     */
+    boolean apply(final JiraClient client,
+               final Iterable<Issue> existingIssues,
+               final long deadline,
+               final Logger logger) {
+        ContentCache cache = ControllerState.getContentCache(target);
+        List<String> open = new ArrayList<String>();
+        int updated = 0;
+        int left = 0;
+        for (Issue issue : existingIssues) {
+            open.add(issue.getKey());
+            Integer count = counts.get(issue.getFieldByName(CATS_HASH).getValue().toString());
+            if (count == null) {
+                continue;
+            }
+            String content = String.valueOf(repo.getCommit());
+            if (!cache.isChanged(issue.getKey(), content)) {
+                logger.debug("%s is up to date", issue.getKey());
+            } else if (System.currentTimeMillis() > deadline) {
+                left++;
+            } else {
+                client.updateIssue(issue.getKey(), repo, build, count);
+                cache.put(issue.getKey(), content);
+                updated++;
+            }
+        }
+        cache.retain(open);
+        cache.save();
+        logger.info("Refreshed %d existing issues%s", updated,
+                    left > 0 ? format(" (%d left for a later build)", left) : "");
+        return left == 0;
+    }
+
+}
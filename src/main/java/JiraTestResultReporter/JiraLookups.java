@@ -0,0 +1,133 @@
+package JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.isti.jira.JiraClient;
+import com.isti.jira.RepoDetails;
+import com.isti.jira.Trace;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * The Jira requests a sync needs before it can plan any changes.  None of them depend on the test results,
+ * so they are started as soon as this is constructed and run while the results are unpacked and hashed:
+ *
+ *   field list ------------------------------\
+ *   issue types --> search for open issues ---+--> getExistingIssues()
+ *
+ * This also owns the client, which is closed (after cancelling anything still running) by close().
+ */
+final class JiraLookups {
+
+    /** Threads for the lookups (they spend almost all their time waiting on Jira). */
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "JiraTestResultReporter lookup"));
+
+    /** The connection to Jira. */
+    private final JiraClient client;
+
+    /** Reading the field list (needed to create issues). */
+    private final Future<?> fields;
+
+    /** Searches for unresolved issues (this reads the issue types first). */
+    private final Callable<Iterable<Issue>> searcher;
+
+    /** Searching for unresolved issues. */
+    private Future<Iterable<Issue>> search;
+
+    /**
+     * @param client The connection to Jira.
+     * @param project The Jira project.
+     * @param issueType The Jira issue type.
+     * @param repo The git repository details.
+     */
+    JiraLookups(final JiraClient client, final String project, final String issueType, final RepoDetails repo) {
+        this.client = client;
+        // the requests are traced as part of whatever started them
+        final Trace.Span span = Trace.current();
+        fields = POOL.submit(new Runnable() {
+            @Override
+            public void run() {
+                Trace.Span previous = Trace.resume(span);
+                try {
+                    client.prefetchFields();
+                } finally {
+                    Trace.resume(previous);
+                }
+            }
+        });
+        searcher = new Callable<Iterable<Issue>>() {
+            @Override
+            public Iterable<Issue> call() {
+                Trace.Span previous = Trace.resume(span);
+                try {
+                    return client.listUnresolvedIssues(project, issueType, repo);
+                } finally {
+                    Trace.resume(previous);
+                }
+            }
+        };
+        search = POOL.submit(searcher);
+    }
+
+    /**
+     * Search again, since Jira may have changed (eg another sync ran while we waited for the lock).
+     */
+    void refresh() {
+        search.cancel(true);
+        search = POOL.submit(searcher);
+    }
+
+    /**
+     * @return The connection to Jira.
+     */
+    JiraClient getClient() {
+        return client;
+    }
+
+    /**
+     * Wait for all the lookups to finish.
+     *
+     * @return The unresolved issues for the project, type and repository.
+     */
+    Iterable<Issue> getExistingIssues() {
+        join(fields);
+        return join(search);
+    }
+
+    /**
+     * Cancel anything still running and close the client.
+     */
+    void close() {
+        fields.cancel(true);
+        search.cancel(true);
+        client.close();
+    }
+
+    /**
+     * @param future The lookup to wait for.
+     * @param <T> The type of the result.
+     * @return The result of the lookup.
+     */
+    private static <T> T join(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.Metrics;
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+
+
+/**
+ * The controller's Jira metrics (see Metrics) as JSON, at /jira-metrics/, for administrators (and their
+ * monitoring).  Nothing is shown in the side panel.
+ */
+@Extension
+public final class JiraMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Jira Metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "jira-metrics";
+    }
+
+    /**
+     * @param request The request.
+     * @param response The response (the metrics, as JSON).
+     * @throws IOException If the response cannot be written.
+     */
+    public void doIndex(final StaplerRequest request, final StaplerResponse response) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONObject.fromObject(Metrics.get().snapshot()).toString(2));
+    }
+
+}
@@ -0,0 +1,340 @@
+package JiraTestResultReporter;
+
+import com.google.inject.Inject;
+import com.isti.jira.RepoDetails;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.JUnitParser;
+import hudson.tasks.test.AbstractTestResultAction;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+
+/**
+ * A Pipeline step that reports test failures to Jira, for example:
+ *
+ *   jiraTestReport testResults: 'target/surefire-reports/*.xml', stage: 'integration'
+ *
+ * The step returns at once and the report is made on the ReportQueue, so no executor (or CPS thread) is
+ * held while Jira is busy; the step completes when the report does.  Reports for different stages are made
+ * in parallel.  Settings not given here come from the
+ * defaults file, as for the freestyle notifier.
+ */
+public final class JiraReportStep extends AbstractStepImpl {
+
+    // THESE MUST BE PUBLIC OR THE PLUGIN DOESN'T WORK (field values read from here afaict)
+    public String testResults;
+    public String stage;
+    public String projectKey;
+    public String issueType;
+    public String serverUrl;
+    public String username;
+    public String password;
+    public String transition;
+    public String repository;
+    public String branch;
+    public String commit;
+    public String exclusions;
+    public String routes;
+    public int timeBudget;
+    public boolean refreshFlag;
+    public boolean debugFlag;
+
+    @DataBoundConstructor
+    public JiraReportStep() {
+    }
+
+    /**
+     * @param testResults JUnit XML files (an Ant pattern, relative to the workspace).  If empty, the results
+     *                    already recorded in the build (eg by the junit step) are reported.
+     */
+    @DataBoundSetter
+    public void setTestResults(final String testResults) {
+        this.testResults = testResults;
+    }
+
+    /**
+     * @param stage Identifies the part of the build whose results these are, so that parallel stages can
+     *              report separately.  If empty, the results are taken to be those of the whole build.
+     */
+    @DataBoundSetter
+    public void setStage(final String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * @param projectKey The Jira project.
+     */
+    @DataBoundSetter
+    public void setProjectKey(final String projectKey) {
+        this.projectKey = projectKey;
+    }
+
+    /**
+     * @param issueType The Jira issue type.
+     */
+    @DataBoundSetter
+    public void setIssueType(final String issueType) {
+        this.issueType = issueType;
+    }
+
+    /**
+     * @param serverUrl The Jira URL.
+     */
+    @DataBoundSetter
+    public void setServerUrl(final String serverUrl) {
+        this.serverUrl = serverUrl;
+    }
+
+    /**
+     * @param username The Jira user.
+     */
+    @DataBoundSetter
+    public void setUsername(final String username) {
+        this.username = username;
+    }
+
+    /**
+     * @param password The Jira password.
+     */
+    @DataBoundSetter
+    public void setPassword(final String password) {
+        this.password = password;
+    }
+
+    /**
+     * @param transition The transition that closes issues.
+     */
+    @DataBoundSetter
+    public void setTransition(final String transition) {
+        this.transition = transition;
+    }
+
+    /**
+     * @param repository The git repository URL (default $GIT_URL).
+     */
+    @DataBoundSetter
+    public void setRepository(final String repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param branch The git branch (default $GIT_BRANCH).
+     */
+    @DataBoundSetter
+    public void setBranch(final String branch) {
+        this.branch = branch;
+    }
+
+    /**
+     * @param commit The git commit (default $GIT_COMMIT).
+     */
+    @DataBoundSetter
+    public void setCommit(final String commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * @param exclusions Rules for failures to ignore, one per line (see FailureFilter).
+     */
+    @DataBoundSetter
+    public void setExclusions(final String exclusions) {
+        this.exclusions = exclusions;
+    }
+
+    /**
+     * @param routes Rules for failures to send to other projects, one per line (see FailureRouter).
+     */
+    @DataBoundSetter
+    public void setRoutes(final String routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * @param timeBudget The maximum time (in seconds) to spend on Jira (zero for no limit).
+     */
+    @DataBoundSetter
+    public void setTimeBudget(final int timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * @param refreshFlag If true, update existing issues with the latest commit, build and failure count.
+     */
+    @DataBoundSetter
+    public void setRefreshFlag(final boolean refreshFlag) {
+        this.refreshFlag = refreshFlag;
+    }
+
+    /**
+     * @param debugFlag Whether debug messages should be displayed.
+     */
+    @DataBoundSetter
+    public void setDebugFlag(final boolean debugFlag) {
+        this.debugFlag = debugFlag;
+    }
+
+    /**
+     * @return A reporter with the same settings.
+     */
+    private JiraReporter getReporter() {
+        JiraReporter reporter = new JiraReporter(projectKey, issueType, serverUrl, username, password,
+                                                 transition, debugFlag);
+        reporter.setExclusions(exclusions);
+        reporter.setRoutes(routes);
+        reporter.setTimeBudget(timeBudget);
+        reporter.setRefreshFlag(refreshFlag);
+        return reporter;
+    }
+
+    /**
+     * @param env The build's environment.
+     * @return The git repository details (given here, or else from the environment).
+     */
+    private RepoDetails getRepo(final EnvVars env) {
+        return new RepoDetails(isEmpty(repository) ? env.get("GIT_URL") : repository,
+                               isEmpty(branch) ? env.get("GIT_BRANCH") : branch,
+                               isEmpty(commit) ? env.get("GIT_COMMIT") : commit);
+    }
+
+    /**
+     * @param run The build being reported.
+     * @param workspace The workspace.
+     * @param launcher Gives access to the workspace's node.
+     * @param listener Destination for messages.
+     * @return The test results, as provided by the test plugin.
+     * @throws IOException If the results cannot be read.
+     * @throws InterruptedException If interrupted.
+     */
+    private Object getResults(final Run<?, ?> run,
+                              final FilePath workspace,
+                              final Launcher launcher,
+                              final TaskListener listener) throws IOException, InterruptedException {
+        if (!isEmpty(testResults)) {
+            return new JUnitParser(false).parseResult(testResults, run, workspace, launcher, listener);
+        }
+        AbstractTestResultAction<?> action = run.getAction(AbstractTestResultAction.class);
+        if (action == null) {
+            throw new AbortException("No test results given or recorded in the build");
+        }
+        return action.getResult();
+    }
+
+
+    /**
+     * Queues the report and returns without waiting for it.
+     */
+    public static final class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject
+        private transient JiraReportStep step;
+
+        @StepContextParameter
+        private transient Run<?, ?> run;
+
+        @StepContextParameter
+        private transient FilePath workspace;
+
+        @StepContextParameter
+        private transient Launcher launcher;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        @StepContextParameter
+        private transient EnvVars env;
+
+        /** Set once the step is completed, by the report or by stop (whichever comes first). */
+        private transient volatile boolean finished;
+
+        @Override
+        public boolean start() {
+            final JiraReporter reporter = step.getReporter();
+            final RepoDetails repo = step.getRepo(env);
+            final String scope = isEmpty(step.stage) ? null : step.stage;
+            // so that the journal replay can find the settings for this stage's operations
+            ControllerState.putStepReporter(run.getParent().getFullName(), scope, reporter);
+            // each stage's reports run in build order, while different stages run in parallel (the target
+            // lock keeps their writes to jira apart)
+            ReportQueue.submit(JiraReporter.scoped(run.getParent().getFullName(), scope), new Runnable() {
+                @Override
+                public void run() {
+                    if (finished) {
+                        return;
+                    }
+                    try {
+                        Object results = step.getResults(run, workspace, launcher, listener);
+                        reporter.report(run, results, workspace.getRemote(), repo, scope, listener);
+                        if (finish()) {
+                            getContext().onSuccess(null);
+                        }
+                    } catch (Exception e) {
+                        if (finish()) {
+                            getContext().onFailure(e);
+                        }
+                    }
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(final Throwable cause) {
+            // a report already running carries on, but mustn't complete the step a second time
+            if (finish()) {
+                getContext().onFailure(cause);
+            }
+        }
+
+        /**
+         * @return True if the step was not already completed (the caller must now complete it).
+         */
+        private synchronized boolean finish() {
+            boolean first = !finished;
+            finished = true;
+            return first;
+        }
+
+        @Override
+        public void onResume() {
+            // the queued report was lost with the old controller (anything journalled is replayed anyway)
+            getContext().onFailure(new AbortException("Jenkins restarted before the Jira report was made"));
+        }
+
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "jiraTestReport";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Report test failures to Jira";
+        }
+
+    }
+
+}
@@ -1,33 +1,67 @@
 package JiraTestResultReporter;
 
 import com.atlassian.jira.rest.client.api.domain.Issue;
-import com.google.common.base.Predicate;
+import com.google.common.base.Function;
 import com.isti.jira.Defaults;
+import com.isti.jira.FailureFilter;
+import com.isti.jira.FailureRouter;
+import com.isti.jira.FailureSet;
+import com.isti.jira.FlakeHistory;
 import com.isti.jira.JiraClient;
+import com.isti.jira.Journal;
 import com.isti.jira.Logger;
+import com.isti.jira.Metrics;
+import com.isti.jira.OccurrenceStore;
+import com.isti.jira.Operation;
 import com.isti.jira.RepoDetails;
+import com.isti.jira.TargetLock;
+import com.isti.jira.Trace;
 import com.isti.jira.UniformTestResult;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.LocalChannel;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import hudson.tasks.junit.CaseResult;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
 
-import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Iterables.filter;
 import static com.isti.jira.Defaults.Key;
 import static com.isti.jira.JiraClient.ALLOW_ANON;
 import static com.isti.jira.JiraClient.CATS_HASH;
@@ -41,7 +75,7 @@ import static org.apache.commons.lang.StringUtils.isEmpty;
  *
  * This is forked from previous work by mapleSteve, which was a big help (thanks!), but makes checkstyle unhappy.
  */
-public final class JiraReporter extends Notifier {
+public final class JiraReporter extends Notifier implements MatrixAggregatable {
 
     // THESE MUST BE PUBLIC OR THE PLUGIN DOESN'T WORK (field values read from here afaict)
     public String projectKey;
@@ -51,11 +85,30 @@ public final class JiraReporter extends Notifier {
     public String password;
     public String transition;
     public boolean debugFlag;
+    public boolean asyncFlag;
+    public boolean agentFlag;
+    public boolean refreshFlag;
+    public int timeBudget;
+    public String exclusions;
+    public String routes;
+
+    /** Compiled from exclusions on first use. */
+    private transient FailureFilter filter;
+
+    /** Compiled from routes on first use. */
+    private transient FailureRouter router;
 
     private static final String PLUGIN_NAME = "[JiraTestResultReporter]";
 
     private static final Defaults DEFAULTS = new Defaults();
 
+    /** The file (in the build directory) that receives messages from background syncs. */
+    static final String BACKGROUND_LOG = "jira-sync.log";
+
+    /** Syncs the routed destinations of a report alongside the reporter's own project. */
+    private static final ExecutorService TARGETS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "JiraTestResultReporter target"));
+
     // THESE ARGUMENTS MUST MATCH THE ATTRIBUTE NAMES OR THE PLUGIN DOESN'T WORK (field values set by name afaict)
     @DataBoundConstructor
     public JiraReporter(final String projectKey,
@@ -76,6 +129,82 @@ public final class JiraReporter extends Notifier {
 
     }
 
+    /**
+     * @param asyncFlag If true, talk to Jira from a background thread after the build has finished.
+     */
+    @DataBoundSetter
+    public void setAsyncFlag(final boolean asyncFlag) {
+        this.asyncFlag = asyncFlag;
+    }
+
+    /**
+     * @param agentFlag If true, talk to Jira from the build's agent rather than the controller.
+     */
+    @DataBoundSetter
+    public void setAgentFlag(final boolean agentFlag) {
+        this.agentFlag = agentFlag;
+    }
+
+    /**
+     * @param refreshFlag If true, update existing issues with the latest commit, build and failure count.
+     */
+    @DataBoundSetter
+    public void setRefreshFlag(final boolean refreshFlag) {
+        this.refreshFlag = refreshFlag;
+    }
+
+    /**
+     * @param timeBudget The maximum time (in seconds) to spend on Jira (zero for no limit).  Any work
+     *                   left over stays in the journal and is picked up later.
+     */
+    @DataBoundSetter
+    public void setTimeBudget(final int timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * @param exclusions Rules for failures to ignore, one per line (see FailureFilter).
+     */
+    @DataBoundSetter
+    public void setExclusions(final String exclusions) {
+        this.exclusions = exclusions;
+        this.filter = null;
+    }
+
+    /**
+     * @return The filter for failures to ignore.
+     */
+    synchronized FailureFilter getFilter() {
+        if (filter == null) {
+            filter = new FailureFilter(exclusions);
+        }
+        return filter;
+    }
+
+    /**
+     * @param routes Rules for failures to send to other projects, one per line (see FailureRouter).
+     */
+    @DataBoundSetter
+    public void setRoutes(final String routes) {
+        this.routes = routes;
+        this.router = null;
+    }
+
+    /**
+     * @return The routes for failures to send to other projects.
+     */
+    synchronized FailureRouter getRouter() {
+        if (router == null) {
+            router = new FailureRouter(routes);
+        }
+        return router;
+    }
+
+    @Override
+    public Action getProjectAction(final AbstractProject<?, ?> project) {
+        return new FailureTrendAction(project);
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
     }
@@ -85,109 +214,717 @@ public final class JiraReporter extends Notifier {
                            final Launcher launcher,
                            final BuildListener listener) {
 
-        Logger logger = new Logger(build, listener, debugFlag);
-        logger.info("Examining test results...");
-        logger.debug("Build result is %s", build.getResult().toString());
-
-        // create a list here to avoid repeatedly running constructors on each use
-        Iterable<UniformTestResult> failedTests = newArrayList(unpack(build, logger));
-        printFailedTests(logger, failedTests);
-        Iterable<UniformTestResult> filteredTests = filterSkippedTests(logger, failedTests);
-        RepoDetails repo = new RepoDetails(build);
-        logger.debug("Repo details: %s", repo);
-
-        // create each time since it's not clear how to close on Jenkins shutdown
-        // (and the overhead once per test isn't an issue anyway).
-        JiraClient client = new JiraClient(serverUrl, username, password);
+        if (build instanceof MatrixBuild || build instanceof MatrixRun) {
+            // reported once for the whole matrix, by the aggregator
+            return true;
+        }
+        Report report = new Report(build, new RepoDetails(build), null, launcher.getChannel(), listener);
         try {
-            Iterable<Issue> existingIssues = client.listUnresolvedIssues(projectKey, issueType, repo);
-            createJiraIssues(filteredTests, existingIssues, repo, client, logger);
-            closeJiraIssues(filteredTests, existingIssues, repo, client, logger);
+            report.add(build);
+            report.finish();
         } finally {
-            client.close();
+            report.close();
         }
-
-        logger.info("Done");
         return true;
     }
 
-    private void printFailedTests(final Logger logger,
-                                  final Iterable<UniformTestResult> failedTests) {
-        for (UniformTestResult result : failedTests) {
-            logger.debug(result.toString());
+    /**
+     * Report results that were parsed by a Pipeline step.  This runs on a ReportQueue thread, so it always
+     * syncs directly (never from the agent or in another background thread).
+     *
+     * @param run The build being reported.
+     * @param results The test results, as provided by the test plugin.
+     * @param workspace The workspace path.
+     * @param repo The git repository details.
+     * @param scope Identifies the part of the build (eg a stage) whose results these are (null for all).
+     * @param listener Destination for messages.
+     */
+    void report(final Run<?, ?> run,
+                final Object results,
+                final String workspace,
+                final RepoDetails repo,
+                final String scope,
+                final TaskListener listener) {
+        Report report = new Report(run, repo, scope, null, listener);
+        try {
+            report.add(results, workspace);
+            report.finish();
+        } finally {
+            report.close();
         }
     }
 
-    private Iterable<UniformTestResult> filterSkippedTests(final Logger logger,
-            final Iterable<UniformTestResult> failedTests) {
-    	return filter(failedTests, new Predicate<UniformTestResult>() {
-    		@Override
-    		public boolean apply(UniformTestResult result) {
-    			boolean skipped = result.getDescription().contains("SkippedException");
-    			if (skipped) logger.info("Skipping '%s'", result);
-    			return !skipped;
-    		}
-    	});
+    @Override
+    public MatrixAggregator createAggregator(final MatrixBuild build,
+                                             final Launcher launcher,
+                                             final BuildListener listener) {
+        return new MatrixAggregator(build, launcher, listener) {
+
+            /** Accumulates the failures from each configuration (null if startBuild() failed). */
+            private Report report;
+
+            @Override
+            public boolean startBuild() {
+                report = new Report(build, new RepoDetails(build), null, launcher.getChannel(), listener);
+                return true;
+            }
+
+            @Override
+            public boolean endRun(final MatrixRun run) {
+                if (report != null && run.getAction(AbstractTestResultAction.class) != null) {
+                    report.add(run);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean endBuild() {
+                if (report == null) {
+                    return true;
+                }
+                try {
+                    report.finish();
+                } finally {
+                    report.close();
+                }
+                return true;
+            }
+
+        };
     }
 
-    void createJiraIssues(final Iterable<UniformTestResult> failedTests,
-                          final Iterable<Issue> existingIssues,
-                          final RepoDetails repo,
-                          final JiraClient client,
-                          final Logger logger) {
-
-        Set<String> known = new HashSet<String>();
-        for (Issue issue: existingIssues) {
-            String hash = issue.getFieldByName(CATS_HASH).getValue().toString();
-            known.add(hash);
-            logger.debug("Known: %s", hash);
+    /**
+     * A single report of a build's failures to Jira.  The failures are added (for a matrix build, from each
+     * configuration as it ends) and then finish() syncs them all at once.  close() must be called.
+     *
+     * The failures are unpacked and hashed once, then divided between the destinations (the reporter's own
+     * project, and any others given by the routes), which are synced concurrently.
+     */
+    private final class Report {
+
+        /** The build being reported. */
+        private final Run<?, ?> build;
+
+        /** The full name of the job being reported. */
+        private final String name;
+
+        /** The name under which the results are recorded (the job's, with the scope if any). */
+        private final String job;
+
+        /** Destination for messages. */
+        private final Logger logger;
+
+        /** The git repository details. */
+        private final RepoDetails repo;
+
+        /** Destination for messages (passed to the agent). */
+        private final TaskListener listener;
+
+        /** The agent to sync from (null to sync from the controller). */
+        private final VirtualChannel agent;
+
+        /** The (filtered, deduplicated) failures. */
+        private final FailureSet failures;
+
+        /** Where failures are sent (the first is the reporter's own project). */
+        private final List<Destination> destinations = new ArrayList<Destination>();
+
+        /** The index in destinations for each route. */
+        private final List<Integer> routed = new ArrayList<Integer>();
+
+        /** Identifies the part of the build whose results are reported (null for all). */
+        private final String scope;
+
+        /** The timing of the report (saved with the build). */
+        private final Trace trace = new Trace();
+
+        /** The span for the whole report (resumed by each call, since a matrix build makes several). */
+        private final Trace.Span root;
+
+        /** Shows the trace (saved with the build, and updated by any background sync). */
+        private final JiraTraceAction timing;
+
+        /**
+         * @param build The build being reported.
+         * @param repo The git repository details.
+         * @param scope Identifies the part of the build whose results are reported (null for all).
+         * @param channel The build's node (null if unknown).
+         * @param listener Destination for messages.
+         */
+        Report(final Run<?, ?> build,
+               final RepoDetails repo,
+               final String scope,
+               final VirtualChannel channel,
+               final TaskListener listener) {
+            this.build = build;
+            this.repo = repo;
+            this.scope = scope;
+            this.listener = listener;
+            root = trace.root(scope == null ? "report" : format("report %s", scope));
+            timing = new JiraTraceAction(scope, "");
+            agent = agentFlag && channel != null && !(channel instanceof LocalChannel) ? channel : null;
+            // a big build logs several lines per failure, so only a sample reaches the console (and with debug,
+            // everything goes to a gzipped file in the build directory)
+            String detail = scope == null ? Logger.DETAIL_LOG
+                    : format("jira-detail-%s.log.gz", scope.replaceAll("[^\\w.-]", "_"));
+            logger = Logger.summarising(build.getParent().getName(), listener.getLogger(),
+                                        debugFlag ? new File(build.getRootDir(), detail) : null);
+            logger.info("Examining test results...");
+            // a running pipeline has no result yet
+            logger.debug("Build result is %s", build.getResult());
+            logger.debug("Repo details: %s", repo);
+            // each part of a build is recorded as a separate job, so that the build counts stay correct
+            name = build.getParent().getFullName();
+            job = scoped(name, scope);
+            failures = new FailureSet(repo, getFilter(), logger);
+            Trace.Span previous = Trace.resume(root);
+            try {
+                destinations.add(new Destination(JiraReporter.this, scope));
+                // routes to the same target share a destination, so that they don't close each other's issues
+                Map<String, Integer> byTarget = new HashMap<String, Integer>();
+                byTarget.put(destinations.get(0).target, 0);
+                for (FailureRouter.Route route : getRouter().getRoutes()) {
+                    Destination destination = new Destination(routedTo(route), scope);
+                    if (!byTarget.containsKey(destination.target)) {
+                        byTarget.put(destination.target, destinations.size());
+                        destinations.add(destination);
+                        destination.startLookups();
+                    }
+                    routed.add(byTarget.get(destination.target));
+                }
+                destinations.get(0).startLookups();
+            } finally {
+                Trace.resume(previous);
+            }
         }
 
-        Set<String> duplicates = new HashSet<String>();
-        for (UniformTestResult result : failedTests) {
-            String hash = result.getHash(repo);
-            
-            if (known.contains(hash)) {
-                logger.info("Jira already contains '%s'", result);
-                logger.info("Hash %s", result.getHash(repo));
+        /**
+         * A single pass that filters, hashes and deduplicates the failures as they are unpacked.
+         *
+         * @param run A build (or matrix configuration) with test results.
+         */
+        void add(final AbstractBuild run) {
+            Trace.Span previous = Trace.resume(root);
+            Trace.Span span = Trace.start("unpack");
+            try {
+                failures.addAll(unpack(run, repo, logger));
+            } finally {
+                span.note("failures", failures.getCount()).end();
+                Trace.resume(previous);
+            }
+        }
 
-            } else if (duplicates.contains(hash)) {
-                logger.info("Ignoring duplicate %s", result);
+        /**
+         * @param results The test results, as provided by the test plugin.
+         * @param workspace The workspace path.
+         */
+        void add(final Object results, final String workspace) {
+            Trace.Span previous = Trace.resume(root);
+            Trace.Span span = Trace.start("unpack");
+            try {
+                failures.addAll(unpack(results, workspace, repo, logger));
+            } finally {
+                span.note("failures", failures.getCount()).end();
+                Trace.resume(previous);
+            }
+        }
 
-            } else {
-                logger.info("Creating issue in project %s at URL %s",
+        /**
+         * Record the failures and bring Jira up to date (or queue that to happen in the background).
+         */
+        void finish() {
+            logger.debug("Failed tests: %d", failures.getCount());
+            Trace.Span previous = Trace.resume(root);
+            try {
+                Trace.Span span = Trace.start("record");
+                try {
+                    ControllerState.getOccurrences().record(job, build.getNumber(), build.getTimeInMillis(),
+                                                            repo.getCommit(), failures.getHashes());
+                } finally {
+                    span.end();
+                }
+                if (destinations.size() == 1) {
+                    destinations.get(0).finish(failures);
+                } else {
+                    finishConcurrently();
+                }
+            } finally {
+                Trace.resume(previous);
+            }
+            logger.info("Done");
+        }
+
+        /**
+         * Divide the failures between the destinations and sync each with its own client and thread.
+         */
+        private void finishConcurrently() {
+            final FailureRouter router = getRouter();
+            final List<FailureSet> parts = failures.split(new Function<UniformTestResult, Integer>() {
+                @Override
+                public Integer apply(final UniformTestResult result) {
+                    FailureRouter.Route route = router.route(result);
+                    return route == null ? 0 : routed.get(router.getRoutes().indexOf(route));
+                }
+            }, destinations.size());
+            List<Future<?>> syncs = new ArrayList<Future<?>>();
+            for (int i = 1; i < destinations.size(); i++) {
+                final Destination destination = destinations.get(i);
+                final FailureSet part = parts.get(i);
+                syncs.add(TARGETS.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Trace.Span previous = Trace.resume(root);
+                        try {
+                            destination.finish(part);
+                        } finally {
+                            Trace.resume(previous);
+                        }
+                    }
+                }));
+            }
+            RuntimeException error = null;
+            try {
+                destinations.get(0).finish(parts.get(0));
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            // wait for all of them, even if one fails, so that none is still running after close()
+            for (Future<?> sync : syncs) {
+                try {
+                    sync.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = error == null ? new RuntimeException(e) : error;
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /**
+         * Release the clients (if any), save the timing and write the summary of messages not shown.
+         */
+        void close() {
+            try {
+                for (Destination destination : destinations) {
+                    destination.close();
+                }
+            } finally {
+                root.end();
+                timing.update(trace);
+                build.addAction(timing);
+                logger.close();
+            }
+        }
+
+        /**
+         * A single Jira project (and issue type and server) that receives some of the failures.
+         */
+        private final class Destination {
+
+            /** Identifies the Jira project and branch. */
+            private final String target;
+
+            /** The last sync for the same target (null if none). */
+            private final JiraSyncAction previous;
+
+            /** The settings for the sync. */
+            private final JiraSync sync;
+
+            /** The time (in ms) by which we should stop talking to Jira. */
+            private final long deadline;
+
+            /** The client and the running requests (null until needed). */
+            private JiraLookups lookups = null;
+
+            /**
+             * @param settings The reporter whose project, issue type and server we use.
+             * @param scope Identifies the part of the build whose results are reported (null for all).
+             */
+            private Destination(final JiraReporter settings, final String scope) {
+                target = scoped(settings.getTarget(repo), scope);
+                sync = settings.getSync(scope);
+                deadline = sync.getDeadline();
+                previous = JiraSyncAction.findPrevious(build, target);
+            }
+
+            /**
+             * Unless we may not need jira at all, start the jira requests now so that they run while we
+             * unpack the results.  Create the client each time since it's not clear how to close on Jenkins
+             * shutdown (and the overhead once per test isn't an issue anyway).
+             */
+            private void startLookups() {
+                if (!asyncFlag && agent == null && !maySkip()) {
+                    lookups = sync.startLookups(repo);
+                }
+            }
+
+            /**
+             * @return True if the previous sync completed, so Jira may already be up to date.
+             */
+            private boolean maySkip() {
+                return previous != null && previous.isClean();
+            }
+
+            /**
+             * @param part The failures for this destination.
+             */
+            private void finish(final FailureSet part) {
+                Trace.Span span = Trace.start(format("sync %s", target)).note("failures", part.getHashes().size());
+                try {
+                    finish(part, span);
+                } finally {
+                    span.end();
+                }
+            }
+
+            /**
+             * @param part The failures for this destination.
+             * @param span Receives how the sync was made.
+             */
+            private void finish(final FailureSet part, final Trace.Span span) {
+                ControllerState.getHistory(target).record(part.getHashes());
+
+                // if nothing changed since the last clean sync then jira already has what we would send
+                // (when existing issues are refreshed, that includes the commit they show)
+                Set<String> hashes = part.getHashes();
+                boolean refreshing = refreshFlag && agent == null && !hashes.isEmpty();
+                String commit = refreshing ? repo.getCommit() : null;
+                if (previous != null && previous.isUpToDate(hashes, commit)) {
+                    logger.info("Failures unchanged since last sync (%d); not contacting Jira", hashes.size());
+                    build.addAction(new JiraSyncAction(target, hashes, previous.getCommit(), true));
+                    span.note("mode", "unchanged");
+                    return;
+                }
+
+                // only now, since it reads the job's whole occurrence history
+                IssueRefresh refresh = refreshing ? getRefresh(part) : null;
+                // the action is added before syncing so that a later build never skips past a sync in progress
+                JiraSyncAction action = new JiraSyncAction(target, hashes, commit, false);
+                build.addAction(action);
+                FlakeHistory history = ControllerState.getHistory(target);
+                if (agent != null) {
+                    span.note("mode", "agent");
+                    logger.info("Syncing from the agent");
+                    if (callAgent(new AgentSync(sync, name, target, part, history, listener, debugFlag))) {
+                        action.markClean();
+                    }
+                } else if (asyncFlag) {
+                    span.note("mode", "queued");
+                    logger.info("Queued for background sync (see %s in the build directory)", BACKGROUND_LOG);
+                    ReportQueue.submit(job, new BackgroundSync(build, name, sync, part, refresh, action, span,
+                                                              trace, timing));
+                } else {
+                    span.note("mode", "direct");
+                    if (lookups == null) {
+                        lookups = sync.startLookups(repo);
+                    }
+                    if (sync.synchronise(name, target, part, lookups, deadline, history, ControllerState.getJournal(),
+                                         refresh, logger)) {
+                        action.markClean();
+                    }
+                }
+            }
+
+            /**
+             * @param part The failures for this destination.
+             * @return The refresh of existing issues for the current failures.
+             */
+            private IssueRefresh getRefresh(final FailureSet part) {
+                Map<String, OccurrenceStore.Stats> stats = ControllerState.getOccurrences().query(job);
+                Map<String, Integer> counts = new HashMap<String, Integer>();
+                for (String hash : part.getHashes()) {
+                    if (stats.containsKey(hash)) {
+                        counts.put(hash, stats.get(hash).getFailures());
+                    }
+                }
+                String root = Jenkins.getInstance().getRootUrl();
+                return new IssueRefresh(repo, root == null ? build.getUrl() : root + build.getUrl(), counts,
+                                        target);
+            }
+
+            /**
+             * The target is locked here, on the controller, so that agent syncs are serialised with all others.
+             *
+             * @param task The sync to run on the agent.
+             * @return True if Jira now matches the failures.
+             */
+            private boolean callAgent(final AgentSync task) {
+                long start = System.currentTimeMillis();
+                boolean failed = true;
+                TargetLock lock = sync.lock(target);
+                try {
+                    AgentSync.Result result = agent.call(task);
+                    Trace.graft(result.getTrace());
+                    failed = false;
+                    return result.isClean();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } finally {
+                    lock.release();
+                    // the agent's calls are recorded there, but the sync as a whole is timed here
+                    Metrics.get().recordSync(job, System.currentTimeMillis() - start, failed);
+                }
+            }
+
+            /**
+             * Release the client (if any).
+             */
+            private void close() {
+                if (lookups != null) {
+                    lookups.close();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * @param route A routing rule.
+     * @return A reporter with our settings, but the route's project (and issue type and server, if given).
+     */
+    private JiraReporter routedTo(final FailureRouter.Route route) {
+        JiraReporter copy = new JiraReporter(route.getProject(),
+                                             route.getIssueType() == null ? issueType : route.getIssueType(),
+                                             route.getServerUrl() == null ? serverUrl : route.getServerUrl(),
+                                             username, password, transition, debugFlag);
+        copy.setTimeBudget(timeBudget);
+        return copy;
+    }
+
+    /**
+     * @param repo The git repository details.
+     * @param target A target, as planned by a sync.
+     * @param scope The part of the build whose results were synced (null for all).
+     * @return This reporter, or a copy for the route, whose target it is (null if none).
+     */
+    JiraReporter forTarget(final RepoDetails repo, final String target, final String scope) {
+        if (scoped(getTarget(repo), scope).equals(target)) {
+            return this;
+        }
+        for (FailureRouter.Route route : getRouter().getRoutes()) {
+            JiraReporter copy = routedTo(route);
+            if (scoped(copy.getTarget(repo), scope).equals(target)) {
+                return copy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name A job or target.
+     * @param scope The part of the build whose results are reported (null for all).
+     * @return The name, followed by the scope if any.
+     */
+    static String scoped(final String name, final String scope) {
+        return scope == null ? name : format("%s %s", name, scope);
+    }
+
+    /**
+     * @param scope The part of the build whose results are synced (null for all).
+     * @return The settings for a sync, resolved against the defaults file.
+     */
+    JiraSync getSync(final String scope) {
+        return new JiraSync(DEFAULTS.withDefault(Key.url, serverUrl),
+                            DEFAULTS.withDefault(Key.user, username),
+                            DEFAULTS.withDefault(Key.password, password, true),
                             DEFAULTS.withDefault(Key.project, projectKey),
-                            DEFAULTS.withDefault(Key.url, serverUrl));
-                client.createIssue(projectKey, issueType, repo, result);
-                duplicates.add(hash);
+                            DEFAULTS.withDefault(Key.issue_type, issueType),
+                            DEFAULTS.withDefault(Key.transition, transition),
+                            timeBudget,
+                            getLimit(Key.storm_threshold),
+                            getLimit(Key.max_creates),
+                            getLimit(Key.open_failures),
+                            getLimit(Key.open_builds),
+                            getLimit(Key.close_passes),
+                            scope,
+                            DEFAULTS.withDefault(Key.lock_dir, null, true),
+                            DEFAULTS.resolve(Key.role, Key.summary, Key.description, Key.repository, Key.branch,
+                                             Key.max_description));
+    }
+
+    /**
+     * @param key A numeric setting in the defaults file.
+     * @return The value (zero if not a number).
+     */
+    private static int getLimit(final Key key) {
+        try {
+            return Integer.parseInt(DEFAULTS.withDefault(key, null, true));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Execute operations left in the journal by a sync that did not finish.  Operations that Jira no longer
+     * needs (the hash already has an open issue, or the issue was already closed) are simply discarded.
+     *
+     * @param operations Pending operations for a single target of this reporter.
+     * @param logger Destination for messages.
+     */
+    void replay(final List<Operation> operations, final Logger logger) {
+        Operation first = operations.get(0);
+        Journal journal = ControllerState.getJournal();
+        // the search below is made after locking, so it sees any issues created by a sync we waited for
+        TargetLock lock = getSync(first.getScope()).lock(first.getTarget());
+        JiraClient client = new JiraClient(serverUrl, username, password);
+        try {
+            Map<String, String> open = new HashMap<String, String>();
+            for (Issue issue : client.listUnresolvedIssues(first.getProject(), first.getIssueType(),
+                                                           first.getRepo())) {
+                open.put(issue.getFieldByName(CATS_HASH).getValue().toString(), issue.getKey());
             }
+            for (Operation operation : operations) {
+                // a build may have superseded the operation since we were called
+                if (journal.isPending(operation)) {
+                    if (operation.isNeeded(open)) {
+                        logger.info("Replaying %s", operation);
+                        Metrics.get().increment("retries");
+                        operation.execute(client);
+                        operation.applyTo(open);
+                    } else {
+                        logger.info("Discarding %s (already done)", operation);
+                    }
+                    journal.complete(operation);
+                }
+            }
+            client.attachQueuedDetails(logger);
+        } finally {
+            client.close();
+            lock.release();
         }
     }
 
-    void closeJiraIssues(final Iterable<? extends UniformTestResult> failedTests,
-                         final Iterable<Issue> existingIssues,
-                         final RepoDetails repo,
-                         final JiraClient client,
-                         final Logger logger) {
+    /**
+     * @param repo The git repository details.
+     * @return A string that identifies the Jira project and branch we synchronise with.
+     */
+    String getTarget(final RepoDetails repo) {
+        return format("%s %s %s %s [%s]",
+                      DEFAULTS.withDefault(Key.url, serverUrl),
+                      DEFAULTS.withDefault(Key.project, projectKey, true),
+                      DEFAULTS.withDefault(Key.issue_type, issueType),
+                      repo.getURL(), repo.getBranch());
+    }
+
+    /**
+     * A sync that runs on the ReportQueue.  Messages go to a file in the build directory, since the build's
+     * own log is closed by the time this runs.
+     */
+    private final class BackgroundSync implements Runnable {
+
+        /** The build whose failures we report. */
+        private final Run<?, ?> build;
+
+        /** The full name of the job being reported. */
+        private final String job;
+
+        /** The settings for the sync. */
+        private final JiraSync sync;
+
+        /** The (filtered) failed tests. */
+        private final FailureSet failures;
+
+        /** Updates issues for failures that are still failing (null for none). */
+        private final IssueRefresh refresh;
+
+        /** Marked clean on success and saved with the build. */
+        private final JiraSyncAction action;
 
-        Set<String> known = new HashSet<String>();
-        for (UniformTestResult result: failedTests) {
-            known.add(result.getHash(repo));
+        /** The span of the report that queued the sync (the sync's spans are added under it). */
+        private final Trace.Span parent;
+
+        /** The report's trace. */
+        private final Trace trace;
+
+        /** Shows the report's trace (updated when the sync is done). */
+        private final JiraTraceAction timing;
+
+        /**
+         * @param build The build whose failures we report.
+         * @param job The full name of the job being reported.
+         * @param sync The settings for the sync.
+         * @param failures The (filtered) failed tests.
+         * @param refresh Updates issues for failures that are still failing (null for none).
+         * @param action Marked clean on success and saved with the build.
+         * @param parent The span of the report that queued the sync.
+         * @param trace The report's trace.
+         * @param timing Shows the report's trace.
+         */
+        private BackgroundSync(final Run<?, ?> build,
+                               final String job,
+                               final JiraSync sync,
+                               final FailureSet failures,
+                               final IssueRefresh refresh,
+                               final JiraSyncAction action,
+                               final Trace.Span parent,
+                               final Trace trace,
+                               final JiraTraceAction timing) {
+            this.build = build;
+            this.job = job;
+            this.sync = sync;
+            this.failures = failures;
+            this.refresh = refresh;
+            this.action = action;
+            this.parent = parent;
+            this.trace = trace;
+            this.timing = timing;
         }
 
-        int count = 0;
-        // run through the open issues and see which are no longer present
-        for (Issue issue: existingIssues) {
-            String hash = issue.getFieldByName(CATS_HASH).getValue().toString();
-            if (known.contains(hash)) {
-                logger.info("Keeping: '%s'", issue.getSummary());
-                count++;
-            } else {
-                logger.info("Closing: '%s'", issue.getSummary());
-                client.closeIssue(issue, transition);
+        @Override
+        public void run() {
+            PrintStream out;
+            try {
+                out = new PrintStream(new FileOutputStream(new File(build.getRootDir(), BACKGROUND_LOG), true),
+                                      true, "UTF-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            long deadline = sync.getDeadline();
+            Logger logger = new Logger(build.getParent().getName(), out, debugFlag);
+            // timed under the span that queued it, so the build's trace shows where the time went
+            Trace.Span previous = Trace.resume(parent);
+            Trace.Span span = Trace.start("background sync");
+            try {
+                logger.info("Background sync for %s", build.getFullDisplayName());
+                JiraLookups lookups = sync.startLookups(failures.getRepo());
+                try {
+                    String target = action.getTarget();
+                    if (sync.synchronise(job, target, failures, lookups, deadline,
+                                         ControllerState.getHistory(target), ControllerState.getJournal(),
+                                         refresh, logger)) {
+                        action.markClean();
+                    }
+                } finally {
+                    lookups.close();
+                }
+                logger.info("Done");
+            } catch (RuntimeException e) {
+                logger.info("Sync failed: %s", e.getMessage());
+                e.printStackTrace(out);
+            } finally {
+                span.end();
+                Trace.resume(previous);
+                timing.update(trace);
+                try {
+                    build.save();
+                } catch (IOException e) {
+                    e.printStackTrace(out);
+                }
+                out.close();
             }
         }
-        logger.debug("Pre-existing issues: %d", count);
+
     }
 
     @Override
@@ -255,6 +992,26 @@ public final class JiraReporter extends Notifier {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckExclusions(@QueryParameter String value) {
+            try {
+                new FailureFilter(value);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(format("Invalid regular expression: %s", e.getDescription()));
+            }
+        }
+
+        public FormValidation doCheckRoutes(@QueryParameter String value) {
+            try {
+                new FailureRouter(value);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(format("Invalid regular expression: %s", e.getDescription()));
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doCheckTransition(@QueryParameter String value) {
             value = DEFAULTS.withDefault(Key.transition, value, true);
             if (isEmpty(value)) {
@@ -0,0 +1,72 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.Logger;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+
+/**
+ * Reports failures to Jira while the build is still running (see StreamingReport).  The Jira settings
+ * are taken from the job's Jira Test Result Reporter, which still makes the final sync after the build.
+ */
+public final class JiraStreamWrapper extends BuildWrapper {
+
+    /** The time between polls if none is given (seconds). */
+    static final int DEFAULT_INTERVAL = 60;
+
+    // THESE MUST BE PUBLIC OR THE PLUGIN DOESN'T WORK (field values read from here afaict)
+    public String testResults;
+    public int interval;
+
+    // THESE ARGUMENTS MUST MATCH THE ATTRIBUTE NAMES OR THE PLUGIN DOESN'T WORK (field values set by name afaict)
+    @DataBoundConstructor
+    public JiraStreamWrapper(final String testResults, final int interval) {
+        this.testResults = testResults;
+        this.interval = interval;
+    }
+
+    @Override
+    public Environment setUp(final AbstractBuild build,
+                             final Launcher launcher,
+                             final BuildListener listener) {
+        JiraReporter reporter = ((AbstractProject<?, ?>) build.getProject()).getPublishersList()
+                .get(JiraReporter.class);
+        if (reporter == null) {
+            new Logger(build, listener, false).info("No Jira Test Result Reporter configured; not streaming");
+            return new Environment() {
+            };
+        }
+        final StreamingReport report = new StreamingReport(reporter, build, testResults,
+                                                           interval > 0 ? interval : DEFAULT_INTERVAL, listener);
+        report.start();
+        return new Environment() {
+            @Override
+            public boolean tearDown(final AbstractBuild build, final BuildListener listener) {
+                report.stop();
+                return true;
+            }
+        };
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildWrapperDescriptor {
+
+        @Override
+        public boolean isApplicable(final AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Report test failures to Jira as they happen";
+        }
+
+    }
+
+}
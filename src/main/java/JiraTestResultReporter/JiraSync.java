@@ -0,0 +1,528 @@
+package JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.isti.jira.Defaults;
+import com.isti.jira.FailureSet;
+import com.isti.jira.FlakeHistory;
+import com.isti.jira.JiraClient;
+import com.isti.jira.Journal;
+import com.isti.jira.Logger;
+import com.isti.jira.Metrics;
+import com.isti.jira.Operation;
+import com.isti.jira.RepoDetails;
+import com.isti.jira.TargetLock;
+import com.isti.jira.Trace;
+import com.isti.jira.UniformTestResult;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static com.isti.jira.JiraClient.CATS_HASH;
+import static java.lang.String.format;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+
+/**
+ * Plans and executes the changes that make Jira match a build's failures.  All settings are resolved
+ * (against the defaults file) on the controller when this is constructed, including those the client reads
+ * itself (clientDefaults), and it is serializable, so that it can also run on an agent (see AgentSync)
+ * without reading the agent's defaults file.
+ */
+final class JiraSync implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The Jira URL. */
+    private final String serverUrl;
+
+    /** The Jira user. */
+    private final String username;
+
+    /** The Jira password. */
+    private final String password;
+
+    /** The Jira project. */
+    private final String projectKey;
+
+    /** The Jira issue type. */
+    private final String issueType;
+
+    /** The transition that closes issues. */
+    private final String transition;
+
+    /** The maximum time (in seconds) to spend on Jira (zero for no limit). */
+    private final int timeBudget;
+
+    /** More new failures than this are clustered by error (zero for never). */
+    private final int stormThreshold;
+
+    /** The maximum number of creates (zero for no limit). */
+    private final int maxCreates;
+
+    /** A failure is reported once it has failed this many times... */
+    private final int openFailures;
+
+    /** ...in this many recent builds. */
+    private final int openBuilds;
+
+    /** An issue is closed once its failure has passed this many builds in a row. */
+    private final int closePasses;
+
+    /** The part of the build whose results are synced (null for all; if set, only failures seen are closed). */
+    private final String scope;
+
+    /** A directory for lock files shared with other controllers (null or empty for none). */
+    private final String lockDir;
+
+    /** The other settings read by JiraClient (role, summary, repository etc), already resolved. */
+    private final Properties clientDefaults;
+
+    /**
+     * @param serverUrl The Jira URL.
+     * @param username The Jira user.
+     * @param password The Jira password.
+     * @param projectKey The Jira project.
+     * @param issueType The Jira issue type.
+     * @param transition The transition that closes issues.
+     * @param timeBudget The maximum time (in seconds) to spend on Jira (zero for no limit).
+     * @param stormThreshold More new failures than this are clustered by error (zero for never).
+     * @param maxCreates The maximum number of creates (zero for no limit).
+     * @param openFailures A failure is reported once it has failed this many times...
+     * @param openBuilds ...in this many recent builds.
+     * @param closePasses An issue is closed once its failure has passed this many builds in a row.
+     * @param scope The part of the build whose results are synced (null for all).
+     * @param lockDir A directory for lock files shared with other controllers (null or empty for none).
+     * @param clientDefaults The other settings read by JiraClient, already resolved.
+     */
+    JiraSync(final String serverUrl,
+             final String username,
+             final String password,
+             final String projectKey,
+             final String issueType,
+             final String transition,
+             final int timeBudget,
+             final int stormThreshold,
+             final int maxCreates,
+             final int openFailures,
+             final int openBuilds,
+             final int closePasses,
+             final String scope,
+             final String lockDir,
+             final Properties clientDefaults) {
+        this.serverUrl = serverUrl;
+        this.username = username;
+        this.password = password;
+        this.projectKey = projectKey;
+        this.issueType = issueType;
+        this.transition = transition;
+        this.timeBudget = timeBudget;
+        this.stormThreshold = stormThreshold;
+        this.maxCreates = maxCreates;
+        this.openFailures = openFailures;
+        this.openBuilds = openBuilds;
+        this.closePasses = closePasses;
+        this.scope = scope;
+        this.lockDir = lockDir;
+        this.clientDefaults = clientDefaults;
+    }
+
+    /**
+     * The parts of a build (eg parallel stages) share the Jira issues, so the lock is on the target without
+     * the scope: otherwise two stages that see the same new failure could both create an issue for it.
+     *
+     * @param target Identifies the Jira project and git branch (followed by the scope, if any).
+     * @return The lock for the project and branch, held until released.
+     */
+    TargetLock lock(final String target) {
+        String base = scope != null && target.endsWith(" " + scope)
+                ? target.substring(0, target.length() - scope.length() - 1) : target;
+        return TargetLock.acquire(base, isEmpty(lockDir) ? null : new File(lockDir));
+    }
+
+    /**
+     * @param repo The git repository details.
+     * @return A new client, with the requests needed before planning already started.
+     */
+    JiraLookups startLookups(final RepoDetails repo) {
+        return new JiraLookups(new JiraClient(serverUrl, username, password, new Defaults(clientDefaults)),
+                               projectKey, issueType, repo);
+    }
+
+    /**
+     * @return The time (in ms) by which we should stop talking to Jira.
+     */
+    long getDeadline() {
+        return timeBudget > 0 ? System.currentTimeMillis() + 1000L * timeBudget : Long.MAX_VALUE;
+    }
+
+    /**
+     * Make Jira match the failed tests: create new issues and close those that are no longer failing.
+     * If there is a journal, the planned operations are journalled before they are executed, so that they
+     * can be replayed if Jira or Jenkins fails part way through.
+     *
+     * Operations are executed in priority order until the deadline passes, followed by any refresh of
+     * existing issues.  Operations left are still in the journal; the next build (or the periodic replay)
+     * picks them up.
+     *
+     * The target is locked throughout, so concurrent builds (or stages) can't both create an issue for the
+     * same failure.  If another sync held the lock, the search for existing issues is repeated.
+     *
+     * @param job The full name of the job being reported.
+     * @param target Identifies the Jira project and git branch.
+     * @param failures The (filtered) failed tests.
+     * @param lookups The client and the (running) requests for existing issues etc.
+     * @param deadline The time (in ms) by which we should stop.
+     * @param history The pass/fail history for the target.
+     * @param journal The journal of pending operations (null if none).
+     * @param refresh Updates issues for failures that are still failing (null for none).
+     * @param logger Destination for messages.
+     * @return True if Jira now matches the failures (nothing was held back or left for later).
+     */
+    boolean synchronise(final String job,
+                        final String target,
+                        final FailureSet failures,
+                        final JiraLookups lookups,
+                        final long deadline,
+                        final FlakeHistory history,
+                        final Journal journal,
+                        final IssueRefresh refresh,
+                        final Logger logger) {
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        Trace.Span wait = Trace.start("lock");
+        TargetLock lock = lock(target);
+        wait.note("contended", lock.isContended()).end();
+        try {
+            if (lock.isContended()) {
+                logger.info("Waited for another sync of the same target; searching Jira again");
+                lookups.refresh();
+            }
+            boolean clean = synchroniseLocked(job, target, failures, lookups, deadline, history, journal, refresh,
+                                              logger);
+            failed = false;
+            return clean;
+        } finally {
+            lock.release();
+            // each part of a build is timed separately, as it is recorded
+            Metrics.get().recordSync(scope == null ? job : format("%s %s", job, scope),
+                                     System.currentTimeMillis() - start, failed);
+        }
+    }
+
+    /**
+     * As synchronise(), but the caller must already hold the target's lock (eg on the controller, while
+     * this runs on an agent).
+     *
+     * @param job The full name of the job being reported.
+     * @param target Identifies the Jira project and git branch.
+     * @param failures The (filtered) failed tests.
+     * @param lookups The client and the (running) requests for existing issues etc.
+     * @param deadline The time (in ms) by which we should stop.
+     * @param history The pass/fail history for the target.
+     * @param journal The journal of pending operations (null if none).
+     * @param refresh Updates issues for failures that are still failing (null for none).
+     * @param logger Destination for messages.
+     * @return True if Jira now matches the failures (nothing was held back or left for later).
+     */
+    boolean synchroniseLocked(final String job,
+                              final String target,
+                              final FailureSet failures,
+                              final JiraLookups lookups,
+                              final long deadline,
+                              final FlakeHistory history,
+                              final Journal journal,
+                              final IssueRefresh refresh,
+                              final Logger logger) {
+        JiraClient client = lookups.getClient();
+        Trace.Span span = Trace.start("wait for lookups");
+        Iterable<Issue> existingIssues;
+        try {
+            existingIssues = lookups.getExistingIssues();
+        } finally {
+            span.end();
+        }
+        List<Operation> operations = new ArrayList<Operation>();
+        boolean deferred;
+        boolean capped;
+        span = Trace.start("plan");
+        try {
+            operations.addAll(planJiraCreates(job, target, failures, existingIssues, logger));
+            operations.addAll(planJiraCloses(job, target, failures, existingIssues, logger));
+            Collections.sort(operations, Operation.BY_PRIORITY);
+            deferred = applyHysteresis(operations, history, logger);
+            capped = limitCreates(operations, maxCreates, logger);
+            if (journal != null) {
+                journal.plan(target, operations);
+            }
+            span.note("changes", operations.size());
+        } finally {
+            span.end();
+        }
+        if (!operations.isEmpty()) {
+            logger.info("Applying %d changes to project %s at URL %s", operations.size(), projectKey, serverUrl);
+        }
+        int done = 0;
+        span = Trace.start("apply");
+        try {
+            for (Operation operation : operations) {
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+                logger.repeated(operation.getClass().getSimpleName(), "%s", operation);
+                operation.execute(client);
+                if (journal != null) {
+                    journal.complete(operation);
+                }
+                done++;
+            }
+        } finally {
+            span.note("done", done).end();
+        }
+        // attachments are extras, so they wait until the issues themselves are in
+        client.attachQueuedDetails(logger);
+        if (done < operations.size()) {
+            logger.info("Time budget of %ds spent; %d changes left for later", timeBudget, operations.size() - done);
+            return false;
+        }
+        // updates only freshen issues, so they come last (but any left must stop the next build skipping)
+        boolean refreshed = true;
+        if (refresh != null) {
+            span = Trace.start("refresh");
+            try {
+                refreshed = refresh.apply(client, existingIssues, deadline, logger);
+            } finally {
+                span.end();
+            }
+        }
+        // if some changes were held back, the next build must not skip the sync
+        return !deferred && !capped && refreshed;
+    }
+
+    /**
+     * Create issues for failures seen while the build is still running (see StreamingReport).  Nothing is
+     * closed, since the results are incomplete, and once the build has seen enough new failures to be a
+     * failure storm nothing more is created, so that they can be clustered.  The final sync at the end of
+     * the build does the rest.
+     *
+     * @param job The full name of the job being reported.
+     * @param target Identifies the Jira project and git branch.
+     * @param failures The (filtered) failed tests in this batch.
+     * @param client The connection to Jira.
+     * @param known The hashes of failures that already have issues (those created here are added).
+     * @param unreported The hashes of the failures this build has seen without an issue (those in this batch
+     *                   are added).
+     * @param created The number of issues already created by this build.
+     * @param history The pass/fail history for the target (not yet including this build).
+     * @param journal The journal of pending operations.
+     * @param logger Destination for messages.
+     * @return The number of issues created.
+     */
+    int createEarly(final String job,
+                    final String target,
+                    final FailureSet failures,
+                    final JiraClient client,
+                    final Set<String> known,
+                    final Set<String> unreported,
+                    final int created,
+                    final FlakeHistory history,
+                    final Journal journal,
+                    final Logger logger) {
+        TargetLock lock = lock(target);
+        try {
+            if (lock.isContended()) {
+                // another build may have created issues for some of these
+                for (Issue issue : client.listUnresolvedIssues(projectKey, issueType, failures.getRepo())) {
+                    known.add(issue.getFieldByName(CATS_HASH).getValue().toString());
+                }
+            }
+            List<Operation> operations = planEarlyCreates(job, target, failures, known, unreported, created, history,
+                                                          logger);
+            if (operations.isEmpty()) {
+                return 0;
+            }
+            // the results are incomplete, so this plan mustn't supersede anything pending
+            journal.add(operations);
+            for (Operation operation : operations) {
+                logger.repeated(operation.getClass().getSimpleName(), "%s", operation);
+                operation.execute(client);
+                journal.complete(operation);
+                known.add(operation.getHash());
+            }
+            client.attachQueuedDetails(logger);
+            return operations.size();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param job The full name of the job being reported.
+     * @param target Identifies the Jira project and git branch.
+     * @param failures The (filtered) failed tests in this batch.
+     * @param known The hashes of failures that already have issues.
+     * @param unreported The hashes of the failures this build has seen without an issue (those in this batch
+     *                   are added).
+     * @param created The number of issues already created by this build.
+     * @param history The pass/fail history for the target (not yet including this build).
+     * @param logger Destination for messages.
+     * @return The creates to make now (none once the build has had a failure storm).
+     */
+    List<Operation> planEarlyCreates(final String job,
+                                     final String target,
+                                     final FailureSet failures,
+                                     final Set<String> known,
+                                     final Set<String> unreported,
+                                     final int created,
+                                     final FlakeHistory history,
+                                     final Logger logger) {
+        failures.classify(known);
+        for (UniformTestResult result : failures.getResults()) {
+            unreported.add(result.getHash(failures.getRepo()));
+        }
+        List<Operation> operations = new ArrayList<Operation>();
+        if (isStorm(unreported.size())) {
+            logger.info("%d new failures so far; leaving them for the end of the build", unreported.size());
+            return operations;
+        }
+        for (UniformTestResult result : failures.getResults()) {
+            operations.add(new Operation.Create(job, scope, target, projectKey, issueType, failures.getRepo(),
+                                                result));
+        }
+        Collections.sort(operations, Operation.BY_PRIORITY);
+        applyHysteresis(operations, history, logger);
+        if (maxCreates > 0) {
+            if (created >= maxCreates) {
+                operations.clear();
+            } else {
+                limitCreates(operations, maxCreates - created, logger);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * @param count The number of new failures.
+     * @return True if that many are a failure storm (and should be clustered).
+     */
+    boolean isStorm(final int count) {
+        return stormThreshold > 0 && count > stormThreshold;
+    }
+
+    /**
+     * Drop creates for failures that have not failed often enough recently, and closes for failures that
+     * have not passed for long enough, so that flaky tests don't open and close issues on alternate builds.
+     *
+     * When the results are only part of a build (eg one Pipeline stage), the other parts share the Jira
+     * issues, so closes are also dropped (silently; they are not ours) for failures this part never saw.
+     *
+     * @param operations The planned operations (modified in place).
+     * @param history The pass/fail history for the target.
+     * @param logger Destination for messages.
+     * @return True if any operations were dropped.
+     */
+    boolean applyHysteresis(final List<Operation> operations,
+                            final FlakeHistory history,
+                            final Logger logger) {
+        boolean dropped = false;
+        for (Iterator<Operation> ops = operations.iterator(); ops.hasNext();) {
+            Operation operation = ops.next();
+            if (scope != null && operation instanceof Operation.Close && !history.knows(operation.getHash())) {
+                ops.remove();
+            } else if (operation instanceof Operation.Create
+                    && !history.shouldOpen(operation.getHash(), openFailures, openBuilds)) {
+                logger.repeated("Not reporting", "Not reporting '%s' until it fails %d times in %d builds",
+                                operation.getSummary(), openFailures, openBuilds);
+                ops.remove();
+                dropped = true;
+            } else if (operation instanceof Operation.Close && !history.shouldClose(operation.getHash(), closePasses)) {
+                logger.repeated("Keeping", "Keeping '%s' until it passes %d times",
+                                operation.getSummary(), closePasses);
+                ops.remove();
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drop the lowest priority creates beyond the limit (the operations must already be sorted).
+     *
+     * @param operations The planned operations (modified in place).
+     * @param limit The maximum number of creates (zero or less for no limit).
+     * @param logger Destination for messages.
+     * @return True if any creates were dropped.
+     */
+    static boolean limitCreates(final List<Operation> operations, final int limit, final Logger logger) {
+        if (limit <= 0) {
+            return false;
+        }
+        int creates = 0;
+        int dropped = 0;
+        for (Iterator<Operation> ops = operations.iterator(); ops.hasNext();) {
+            if (ops.next() instanceof Operation.Create && ++creates > limit) {
+                ops.remove();
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            logger.info("Limit of %d new issues per build reached; %d failures not reported", limit, dropped);
+        }
+        return dropped > 0;
+    }
+
+    List<Operation> planJiraCreates(final String job,
+                                    final String target,
+                                    final FailureSet failures,
+                                    final Iterable<Issue> existingIssues,
+                                    final Logger logger) {
+
+        Set<String> known = new HashSet<String>();
+        for (Issue issue: existingIssues) {
+            String hash = issue.getFieldByName(CATS_HASH).getValue().toString();
+            known.add(hash);
+            logger.debug("Known: %s", hash);
+        }
+
+        // after this, only the failures that need an issue are kept
+        failures.classify(known);
+        failures.cluster(stormThreshold, known);
+        List<Operation> operations = new ArrayList<Operation>();
+        for (UniformTestResult result : failures.getResults()) {
+            operations.add(new Operation.Create(job, scope, target, projectKey, issueType, failures.getRepo(),
+                                                result));
+        }
+        return operations;
+    }
+
+    List<Operation> planJiraCloses(final String job,
+                                   final String target,
+                                   final FailureSet failures,
+                                   final Iterable<Issue> existingIssues,
+                                   final Logger logger) {
+
+        Set<String> known = failures.getHashes();
+        List<Operation> operations = new ArrayList<Operation>();
+        int count = 0;
+        // run through the open issues and see which are no longer present
+        for (Issue issue: existingIssues) {
+            String hash = issue.getFieldByName(CATS_HASH).getValue().toString();
+            if (known.contains(hash)) {
+                logger.repeated("Keeping", "Keeping: '%s'", issue.getSummary());
+                count++;
+            } else {
+                operations.add(new Operation.Close(job, scope, target, projectKey, issueType, failures.getRepo(),
+                                                   hash, issue, transition));
+            }
+        }
+        logger.debug("Pre-existing issues: %d", count);
+        return operations;
+    }
+
+}
@@ -0,0 +1,131 @@
+package JiraTestResultReporter;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static java.lang.String.format;
+
+
+/**
+ * Records the failures that a build synchronised with Jira.  The next build of the same job reads this back
+ * and, if the failing set is identical and the earlier sync was error-free, skips Jira entirely.  When
+ * existing issues are refreshed, the commit they were refreshed to must match too (see IssueRefresh).
+ *
+ * Actions are matched on a "target" (server, project, issue type, repository and branch) so that several
+ * reporters on one job, or builds of different branches, don't confuse each other.
+ */
+public final class JiraSyncAction extends InvisibleAction {
+
+    /** How many earlier builds we are willing to examine when looking for a previous sync. */
+    static final int MAX_LOOKBACK = 50;
+
+    /** Identifies the Jira project and git branch that were synchronised. */
+    private final String target;
+
+    /** Sorted hashes of the failures that were synchronised. */
+    private final String[] hashes;
+
+    /** The commit existing issues were refreshed to (null if they weren't, or for builds before it was kept). */
+    private final String commit;
+
+    /** True if the sync completed without error (false while a background sync is pending). */
+    private volatile boolean clean;
+
+    /**
+     * @param target Identifies the Jira project and git branch that were synchronised.
+     * @param hashes Hashes of the failures that were synchronised.
+     * @param commit The commit existing issues were refreshed to (null if they weren't).
+     * @param clean True if the sync completed without error.
+     */
+    public JiraSyncAction(final String target,
+                          final Collection<String> hashes,
+                          final String commit,
+                          final boolean clean) {
+        this.target = target;
+        this.hashes = hashes.toArray(new String[hashes.size()]);
+        Arrays.sort(this.hashes);
+        this.commit = commit;
+        this.clean = clean;
+    }
+
+    /**
+     * @return Identifies the Jira project and git branch that were synchronised.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The number of failures that were synchronised.
+     */
+    public int getCount() {
+        return hashes.length;
+    }
+
+    /**
+     * @return The commit existing issues were refreshed to (null if they weren't).
+     */
+    public String getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return True if the sync completed without error.
+     */
+    public boolean isClean() {
+        return clean;
+    }
+
+    /**
+     * Record that the sync completed without error.
+     */
+    void markClean() {
+        clean = true;
+    }
+
+    /**
+     * @param others Hashes of the failures in the current build.
+     * @return True if the current failures are exactly those synchronised here.
+     */
+    public boolean matches(final Collection<String> others) {
+        String[] sorted = others.toArray(new String[others.size()]);
+        Arrays.sort(sorted);
+        return Arrays.equals(hashes, sorted);
+    }
+
+    /**
+     * @param others Hashes of the failures in the current build.
+     * @param refreshed The commit existing issues would be refreshed to (null if they aren't refreshed).
+     * @return True if this sync left Jira with everything the current build would send.
+     */
+    public boolean isUpToDate(final Collection<String> others, final String refreshed) {
+        return clean && matches(others) && (refreshed == null || refreshed.equals(commit));
+    }
+
+    /**
+     * @param build The current build.
+     * @param target Identifies the Jira project and git branch.
+     * @return The most recent earlier sync for the same target, or null if none was found.
+     */
+    public static JiraSyncAction findPrevious(final Run<?, ?> build, final String target) {
+        Run<?, ?> previous = build.getPreviousBuild();
+        for (int i = 0; previous != null && i < MAX_LOOKBACK; i++) {
+            for (JiraSyncAction action : previous.getActions(JiraSyncAction.class)) {
+                if (action.getTarget().equals(target)) {
+                    return action;
+                }
+            }
+            previous = previous.getPreviousBuild();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return format("%s (%d failures, %s)", target, hashes.length, clean ? "clean" : "with errors");
+    }
+
+}
@@ -0,0 +1,125 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.Trace;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.util.List;
+
+import static java.lang.String.format;
+
+
+/**
+ * The timing of a build's report to Jira (unpacking, each sync and each REST call, with page counts and
+ * sizes), shown as a timeline so slow builds can be diagnosed afterwards.  The spans are stored as a single
+ * encoded string (see Trace.encode()) to keep build.xml small.  A background sync finishes after the report,
+ * so it updates the spans when it is done; an agent sync's calls are added when the agent returns them.
+ */
+public final class JiraTraceAction implements RunAction2 {
+
+    /** Identifies the part of the build that was reported (null for all). */
+    private final String scope;
+
+    /** The spans, encoded. */
+    private volatile String spans;
+
+    /** The build (set by Jenkins). */
+    private transient Run<?, ?> run;
+
+    /**
+     * @param scope Identifies the part of the build that was reported (null for all).
+     * @param spans The spans, encoded.
+     */
+    public JiraTraceAction(final String scope, final String spans) {
+        this.scope = scope;
+        this.spans = spans;
+    }
+
+    /**
+     * @param trace The trace, now with more spans (eg from a background sync).
+     */
+    void update(final Trace trace) {
+        // encoded while locked, so an older encoding can't replace a newer one
+        synchronized (this) {
+            spans = trace.encode();
+        }
+    }
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        run = r;
+    }
+
+    /**
+     * @return The build.
+     */
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    /**
+     * @return The spans, each followed by its children.
+     */
+    public List<Trace.Record> getRecords() {
+        return Trace.decode(spans);
+    }
+
+    /**
+     * @return The number of spans not recorded (the trace has a size limit).
+     */
+    public int getOmitted() {
+        return Trace.getOmitted(spans);
+    }
+
+    /**
+     * @return The duration of the whole report (ms), including any background sync.
+     */
+    public long getTotal() {
+        return getTotal(getRecords());
+    }
+
+    /**
+     * @param records The spans (from getRecords(), so a page decodes them once).
+     * @return The duration of the whole report (ms), including any background sync.
+     */
+    public long getTotal(final List<Trace.Record> records) {
+        long total = 0;
+        for (Trace.Record record : records) {
+            total = Math.max(total, record.getStart() + Math.max(record.getDuration(), 0));
+        }
+        return total;
+    }
+
+    /**
+     * @param record A span.
+     * @param whole The duration of the whole report (from getTotal()).
+     * @return The CSS for its bar on the timeline (offset and width as percentages of the whole report).
+     */
+    public String getBar(final Trace.Record record, final long whole) {
+        double total = Math.max(whole, 1);
+        double duration = record.getDuration() < 0 ? total - record.getStart() : record.getDuration();
+        return format("margin-left: %.2f%%; width: %.2f%%", Math.min(100 * record.getStart() / total, 100),
+                      Math.max(Math.min(100 * duration / total, 100), 0.2));
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return scope == null ? "Jira Report Timing" : format("Jira Report Timing (%s)", scope);
+    }
+
+    @Override
+    public String getUrlName() {
+        return scope == null ? "jira-timing" : format("jira-timing-%s", scope.replaceAll("[^\\w.-]", "_"));
+    }
+
+}
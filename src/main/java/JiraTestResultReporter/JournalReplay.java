@@ -0,0 +1,127 @@
+package JiraTestResultReporter;
+
+import com.isti.jira.Logger;
+import com.isti.jira.Operation;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.tasks.Publisher;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Periodically retries operations left in the journal by syncs that did not finish (Jira was down, or
+ * Jenkins restarted).  The first run is shortly after startup; later runs pick up the work once Jira
+ * recovers.
+ *
+ * Replays run on the ReportQueue, so they are ordered with any background syncs for the same job.
+ * Operations whose reporter can't be found (a Pipeline step that hasn't run since Jenkins started, or a
+ * job that was renamed or reconfigured) are left in the journal, until a later replay finds the reporter or
+ * a sync of the same target supersedes them.
+ */
+@Extension
+public final class JournalReplay extends AsyncPeriodicWork {
+
+    /**
+     * Register with Jenkins.
+     */
+    public JournalReplay() {
+        super("Jira journal replay");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(final TaskListener listener) throws InterruptedException {
+        Map<String, List<Operation>> byTarget = new LinkedHashMap<String, List<Operation>>();
+        for (Operation operation : ControllerState.getJournal().pending()) {
+            String key = operation.getJob() + "\n" + operation.getTarget();
+            if (!byTarget.containsKey(key)) {
+                byTarget.put(key, new ArrayList<Operation>());
+            }
+            byTarget.get(key).add(operation);
+        }
+        for (List<Operation> operations : byTarget.values()) {
+            replay(operations, listener);
+        }
+    }
+
+    /**
+     * @param operations Pending operations for a single job and target.
+     * @param listener Destination for messages.
+     * @throws InterruptedException If Jenkins is shutting down.
+     */
+    private void replay(final List<Operation> operations, final TaskListener listener)
+            throws InterruptedException {
+        final Operation first = operations.get(0);
+        final String job = first.getJob();
+        final JiraReporter reporter = findReporter(job, first);
+        final Logger logger = new Logger(job, listener.getLogger(), false);
+        if (reporter == null) {
+            logger.info("No reporter found for %s; leaving %d operations for later", first.getTarget(),
+                        operations.size());
+            return;
+        }
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                reporter.replay(operations, logger);
+            }
+        }, null);
+        ReportQueue.submit(JiraReporter.scoped(job, first.getScope()), task);
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            // leave the operations in the journal for next time
+            logger.info("Replay failed: %s", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * @param job The job that planned the operation.
+     * @param operation A pending operation.
+     * @return The reporter (on that job or its Pipeline step, or routed from it) with the same target, or
+     *         null if there is none.
+     */
+    private static JiraReporter findReporter(final String job, final Operation operation) {
+        AbstractProject<?, ?> project = Jenkins.getInstance().getItemByFullName(job, AbstractProject.class);
+        if (project != null) {
+            for (Publisher publisher : project.getPublishersList()) {
+                if (publisher instanceof JiraReporter) {
+                    JiraReporter reporter = forTarget((JiraReporter) publisher, operation);
+                    if (reporter != null) {
+                        return reporter;
+                    }
+                }
+            }
+        }
+        JiraReporter step = ControllerState.getStepReporter(job, operation.getScope());
+        return step == null ? null : forTarget(step, operation);
+    }
+
+    /**
+     * @param reporter A reporter for the job.
+     * @param operation A pending operation.
+     * @return The reporter, or a copy for one of its routes, with the same target (null if none).
+     */
+    private static JiraReporter forTarget(final JiraReporter reporter, final Operation operation) {
+        return reporter.forTarget(operation.getRepo(), operation.getTarget(), operation.getScope());
+    }
+
+}
@@ -0,0 +1,133 @@
+package JiraTestResultReporter;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A controller-wide pool of threads that talk to Jira in the background, so that builds release their
+ * executor as soon as the test results have been examined.
+ *
+ * Tasks submitted with the same key (the job name, followed by the stage for part of a Pipeline build) run
+ * one at a time, in submission order, so that the syncs for successive builds of a job cannot overtake each
+ * other.  Tasks with different keys (other jobs, or other stages) run in parallel.
+ */
+final class ReportQueue {
+
+    /** For errors that escape a task (tasks report their own to the build). */
+    private static final Logger LOGGER = Logger.getLogger(ReportQueue.class.getName());
+
+    /** The number of background threads shared by all jobs. */
+    static final int THREADS = 4;
+
+    /** The shared pool. */
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "JiraTestResultReporter"));
+
+    /** Tasks waiting to run, by key.  A key is present only while a runner for it is scheduled. */
+    private static final Map<String, LinkedList<Runnable>> PENDING = new HashMap<String, LinkedList<Runnable>>();
+
+    /**
+     * Hide constructor for utility class.
+     */
+    private ReportQueue() {
+    }
+
+    /**
+     * @param key Tasks with the same key run in order, one at a time.
+     * @param task The work to do.
+     */
+    static void submit(final String key, final Runnable task) {
+        synchronized (PENDING) {
+            LinkedList<Runnable> queue = PENDING.get(key);
+            if (queue != null) {
+                queue.add(task);
+                return;
+            }
+            queue = new LinkedList<Runnable>();
+            queue.add(task);
+            PENDING.put(key, queue);
+        }
+        POOL.execute(new Runner(key));
+    }
+
+    /**
+     * @param key The key to check.
+     * @return The number of tasks waiting or running for the key.
+     */
+    static int size(final String key) {
+        synchronized (PENDING) {
+            LinkedList<Runnable> queue = PENDING.get(key);
+            return queue == null ? 0 : queue.size();
+        }
+    }
+
+    /**
+     * Drains the queue for a single key.
+     */
+    private static final class Runner implements Runnable {
+
+        /** The key whose tasks we run. */
+        private final String key;
+
+        /**
+         * @param key The key whose tasks we run.
+         */
+        private Runner(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (PENDING) {
+                // the head stays in the queue while it runs, so size() counts it
+                task = PENDING.get(key).peek();
+            }
+            while (task != null) {
+                boolean escaped = true;
+                try {
+                    task.run();
+                    escaped = false;
+                } catch (RuntimeException e) {
+                    // tasks report their own errors; this only protects the remaining tasks
+                    LOGGER.log(Level.WARNING, "Background Jira task for " + key + " failed", e);
+                    escaped = false;
+                } finally {
+                    task = next();
+                    if (escaped && task != null) {
+                        // an Error is ending this thread, so another runner takes the remaining tasks
+                        POOL.execute(new Runner(key));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Remove the task that has just run (and the key, once nothing is left).
+         *
+         * @return The next task for the key (null if none).
+         */
+        private Runnable next() {
+            synchronized (PENDING) {
+                LinkedList<Runnable> queue = PENDING.get(key);
+                queue.poll();
+                if (queue.isEmpty()) {
+                    PENDING.remove(key);
+                    return null;
+                }
+                return queue.peek();
+            }
+        }
+
+    }
+
+}
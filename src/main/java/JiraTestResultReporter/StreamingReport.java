@@ -0,0 +1,297 @@
+package JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.google.common.base.Function;
+import com.isti.jira.FailureRouter;
+import com.isti.jira.FailureSet;
+import com.isti.jira.Logger;
+import com.isti.jira.RepoDetails;
+import com.isti.jira.UniformTestResult;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.junit.TestResult;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.isti.jira.JiraClient.CATS_HASH;
+import static com.isti.jira.UniformTestResult.unpack;
+
+
+/**
+ * Watches a running build's JUnit reports and creates issues for new failures as they appear, so that
+ * Jira hears about them long before a multi-hour suite ends and the creates are spread across the build.
+ *
+ * Each poll reads only the report files that changed since the last one (on the agent), and the failures
+ * found are one batch of creates.  Nothing is closed: the reporter's usual sync at the end of the build
+ * reconciles everything (and finds the issues created here already in Jira).  Once the build has had more
+ * new failures than the storm threshold, watching stops, so the end of the build can cluster them.
+ */
+final class StreamingReport implements Runnable {
+
+    /** Threads for the watchers (one per streaming build). */
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "JiraTestResultReporter stream"));
+
+    /** Files modified more recently than this (ms) may still be being written, so are left for later. */
+    static final long SETTLE = 2000;
+
+    /** The reporter that makes the final sync (for its settings). */
+    private final JiraReporter reporter;
+
+    /** The workspace with the reports. */
+    private final FilePath workspace;
+
+    /** An Ant pattern for the JUnit reports. */
+    private final String pattern;
+
+    /** The time between polls (ms). */
+    private final long interval;
+
+    /** Destination for messages. */
+    private final Logger logger;
+
+    /** The git repository details. */
+    private final RepoDetails repo;
+
+    /** Identifies the Jira project and branch. */
+    private final String target;
+
+    /** The name of the job being reported. */
+    private final String job;
+
+    /** The settings for the sync. */
+    private final JiraSync sync;
+
+    /** The modification time of each report already read, by path. */
+    private HashMap<String, Long> seen = new HashMap<String, Long>();
+
+    /** The client and existing issues (null until the first failure). */
+    private JiraLookups lookups = null;
+
+    /** The hashes of failures that have issues (null until the first failure). */
+    private Set<String> known = null;
+
+    /** The hashes of the failures seen so far that had no issue (counted towards a failure storm). */
+    private final Set<String> unreported = new HashSet<String>();
+
+    /** The number of issues created so far. */
+    private int created = 0;
+
+    /** Set (with notify) when the build's steps are done. */
+    private boolean stopped = false;
+
+    /** The running watcher. */
+    private Future<?> future;
+
+    /**
+     * @param reporter The reporter that makes the final sync (for its settings).
+     * @param build The running build.
+     * @param pattern An Ant pattern for the JUnit reports.
+     * @param interval The time between polls (seconds).
+     * @param listener Destination for messages.
+     */
+    StreamingReport(final JiraReporter reporter,
+                    final AbstractBuild build,
+                    final String pattern,
+                    final int interval,
+                    final BuildListener listener) {
+        this.reporter = reporter;
+        this.workspace = build.getWorkspace();
+        this.pattern = pattern;
+        this.interval = 1000L * interval;
+        logger = new Logger(build, listener, reporter.debugFlag);
+        repo = new RepoDetails(build);
+        target = reporter.getTarget(repo);
+        job = build.getProject().getFullName();
+        sync = reporter.getSync(null);
+    }
+
+    /**
+     * Start watching.
+     */
+    void start() {
+        logger.info("Watching %s for failures", pattern);
+        future = POOL.submit(this);
+    }
+
+    /**
+     * Stop watching, after any poll in progress (so that no create is interrupted part way through).
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.info("Streaming failed: %s", e.getCause().getMessage());
+        } finally {
+            if (lookups != null) {
+                lookups.close();
+            }
+        }
+        logger.info("Created %d issues during the build", created);
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean watching = true;
+            while (watching && waitForPoll()) {
+                watching = poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.info("Streaming stopped: %s", e.getMessage());
+        } catch (RuntimeException e) {
+            // eg jira is down; the final sync will report everything
+            logger.info("Streaming stopped: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * @return True if it is time to poll, false if we have been stopped.
+     * @throws InterruptedException If interrupted.
+     */
+    private synchronized boolean waitForPoll() throws InterruptedException {
+        long end = System.currentTimeMillis() + interval;
+        for (long now = System.currentTimeMillis(); !stopped && now < end; now = System.currentTimeMillis()) {
+            wait(end - now);
+        }
+        return !stopped;
+    }
+
+    /**
+     * Read the changed reports and create issues for any new failures.
+     *
+     * @return False if there has been a failure storm, so watching should stop.
+     * @throws IOException If the reports cannot be read.
+     * @throws InterruptedException If interrupted.
+     */
+    private boolean poll() throws IOException, InterruptedException {
+        Batch batch = workspace.act(new ReportScanner(pattern, seen));
+        seen = batch.seen;
+        if (batch.result.getFailCount() == 0) {
+            return true;
+        }
+        logger.debug("Read %d changed reports", batch.files);
+        // failures routed to other projects are left for the final sync
+        final FailureRouter router = reporter.getRouter();
+        FailureSet failures = new FailureSet(repo, reporter.getFilter(), logger)
+                .addAll(unpack(batch.result, workspace.getRemote(), repo, logger))
+                .split(new Function<UniformTestResult, Integer>() {
+                    @Override
+                    public Integer apply(final UniformTestResult result) {
+                        return router.route(result) == null ? 0 : 1;
+                    }
+                }, 2).get(0);
+        if (known == null) {
+            lookups = sync.startLookups(repo);
+            known = new HashSet<String>();
+            for (Issue issue : lookups.getExistingIssues()) {
+                known.add(issue.getFieldByName(CATS_HASH).getValue().toString());
+            }
+        }
+        created += sync.createEarly(job, target, failures, lookups.getClient(), known, unreported, created,
+                                    ControllerState.getHistory(target), ControllerState.getJournal(), logger);
+        return !sync.isStorm(unreported.size());
+    }
+
+
+    /**
+     * The reports that changed since the last poll.
+     */
+    static final class Batch implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** The results in the changed reports. */
+        final TestResult result;
+
+        /** The modification time of each report read so far, by path. */
+        final HashMap<String, Long> seen;
+
+        /** The number of reports read in this batch. */
+        final int files;
+
+        /**
+         * @param result The results in the changed reports.
+         * @param seen The modification time of each report read so far, by path.
+         * @param files The number of reports read in this batch.
+         */
+        private Batch(final TestResult result, final HashMap<String, Long> seen, final int files) {
+            this.result = result;
+            this.seen = seen;
+            this.files = files;
+        }
+
+    }
+
+    /**
+     * Reads (on the agent) the reports that are new or changed since the last poll.
+     */
+    static final class ReportScanner extends MasterToSlaveFileCallable<Batch> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** An Ant pattern for the JUnit reports. */
+        private final String pattern;
+
+        /** The modification time of each report already read, by path. */
+        private final HashMap<String, Long> seen;
+
+        /**
+         * @param pattern An Ant pattern for the JUnit reports.
+         * @param seen The modification time of each report already read, by path.
+         */
+        ReportScanner(final String pattern, final Map<String, Long> seen) {
+            this.pattern = pattern;
+            this.seen = new HashMap<String, Long>(seen);
+        }
+
+        @Override
+        public Batch invoke(final File dir, final VirtualChannel channel) throws IOException {
+            TestResult result = new TestResult();
+            long now = System.currentTimeMillis();
+            int files = 0;
+            for (String name : Util.createFileSet(dir, pattern).getDirectoryScanner().getIncludedFiles()) {
+                File file = new File(dir, name);
+                long modified = file.lastModified();
+                Long previous = seen.get(name);
+                if ((previous == null || previous != modified) && now - modified > SETTLE) {
+                    try {
+                        result.parse(file);
+                        seen.put(name, modified);
+                        files++;
+                    } catch (IOException e) {
+                        // probably still being written; try again next poll
+                    }
+                }
+            }
+            result.tally();
+            return new Batch(result, seen, files);
+        }
+
+    }
+
+}
@@ -271,6 +271,7 @@ public final class CmdLine {
                     }
                 }
                 client.createIssue(project, type, repo, new UniformTestResult(title, description));
+                client.attachQueuedDetails(new Logger("create-issue", System.err, false));
             } finally {
                 client.close();
             }
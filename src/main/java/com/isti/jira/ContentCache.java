@@ -0,0 +1,120 @@
+package com.isti.jira;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+
+/**
+ * A hash of the content last written to each issue (by key), so that issues are only updated when
+ * something actually changed.  The file has one line per issue and is rewritten by save().
+ */
+public final class ContentCache {
+
+    /** The file encoding. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The file the hashes are stored in. */
+    private final File file;
+
+    /** The hash of the content of each issue, by key. */
+    private final Map<String, String> hashes = new HashMap<String, String>();
+
+    /**
+     * @param file The file the hashes are stored in (read if it exists).
+     */
+    public ContentCache(final File file) {
+        this.file = file;
+        if (file.exists()) {
+            read();
+        }
+    }
+
+    /**
+     * @param key The issue key.
+     * @param content The content we would write.
+     * @return True if the content differs from that last written (or nothing is known).
+     */
+    public boolean isChanged(final String key, final String content) {
+        return !DigestUtils.shaHex(content).equals(hashes.get(key));
+    }
+
+    /**
+     * @param key The issue key.
+     * @param content The content written.
+     */
+    public void put(final String key, final String content) {
+        hashes.put(key, DigestUtils.shaHex(content));
+    }
+
+    /**
+     * Forget issues that are no longer open.
+     *
+     * @param keys The issues to keep.
+     */
+    public void retain(final Collection<String> keys) {
+        hashes.keySet().retainAll(keys);
+    }
+
+    /**
+     * Read the hashes (malformed lines are ignored).
+     */
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length == 2) {
+                        hashes.put(fields[0], fields[1]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the hashes to a temporary file, then replace the old file.
+     */
+    public void save() {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException(format("Cannot create %s", parent));
+            }
+            File temp = new File(parent, file.getName() + ".tmp");
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+            try {
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    out.write(format("%s %s\n", entry.getKey(), entry.getValue()));
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException(format("Cannot replace %s", file));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
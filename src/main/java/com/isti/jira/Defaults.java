@@ -50,7 +50,33 @@ public class Defaults {
         /** The repository containing the code being tested. */
         repository,
         /** The repo branch containing the code being tested. */
-        branch;
+        branch,
+        /** An extra regular expression for volatile text in JUnit errors (see Normaliser). */
+        mask_junit,
+        /** An extra regular expression for volatile text in TAP errors (see Normaliser). */
+        mask_tap,
+        /** An extra regular expression for volatile text in Robot errors (see Normaliser). */
+        mask_robot,
+        /** An extra regular expression for volatile text in other errors (see Normaliser). */
+        mask_generic,
+        /** More new failures than this are clustered by error (see FailureSet; zero for never). */
+        storm_threshold("0"),
+        /** The maximum number of issues created by a single build (zero for no limit). */
+        max_creates("0"),
+        /** A failure is reported once it has failed this many times... */
+        open_failures("1"),
+        /** ...in this many recent builds (at most 64; see FlakeHistory). */
+        open_builds("1"),
+        /** An issue is closed once its failure has passed this many builds in a row (at most 64). */
+        close_passes("1"),
+        /** Longer descriptions are truncated, with the full text attached (zero for no limit). */
+        max_description("30000"),
+        /** The layout of issue summaries, with placeholders (see Template; usually not supplied). */
+        summary_template,
+        /** The layout of issue descriptions, with placeholders (see Template; usually not supplied). */
+        description_template,
+        /** A directory for lock files, shared by controllers that report to the same Jira (see TargetLock). */
+        lock_dir;
 
         /**
          * The default value (may be null, eg in the case of password).
@@ -140,6 +166,24 @@ public class Defaults {
         return withDefault(key, null, false);
     }
 
+    /**
+     * Resolve settings here (eg on the controller) so that they can be used elsewhere (eg on an agent,
+     * with new Defaults(properties)) without reading the file on that machine.
+     *
+     * @param keys The settings needed.
+     * @return The value of each setting that has one (including built in defaults).
+     */
+    public final Properties resolve(final Key... keys) {
+        Properties resolved = new Properties();
+        for (Key key : keys) {
+            String value = withDefault(key, null, true);
+            if (value != null) {
+                resolved.setProperty(key.name(), value);
+            }
+        }
+        return resolved;
+    }
+
     /**
      * List all the key/value pairs that were defined in DOT_FILE.
      *
@@ -0,0 +1,161 @@
+package com.isti.jira;
+
+import com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+
+/**
+ * Decides which failures to ignore, using only the cheap identity fields of a result (class name, test
+ * name and error type), so excluded failures never have a description built or reach Jira.
+ *
+ * Rules are given one per line, as "[field:]pattern".  The field is class, test or error (if omitted,
+ * any field may match).  The pattern is a regular expression between slashes, a glob (using * and ?),
+ * or a literal, and must match the whole value.  All the rules for a field are compiled into a single
+ * pattern, so each field is scanned once whatever the number of rules.  The exception is a regular
+ * expression with a numbered backreference, which is compiled alone, since combining renumbers its groups.
+ *
+ * Skipped tests are always ignored.  As before the rules existed, these are failures that mention SKIPPED
+ * anywhere in the description (eg in a "Caused by" line, or in TAP and Robot text that has no error type);
+ * this is checked last, and without rendering the description.
+ */
+public final class FailureFilter implements Predicate<UniformTestResult> {
+
+    /** Marks tests that were not run (the test plugins report these as failures). */
+    public static final String SKIPPED = "SkippedException";
+
+    /** Finds a numbered backreference (one that isn't itself escaped). */
+    private static final Pattern BACKREFERENCE = Pattern.compile("(?<!\\\\)(?:\\\\\\\\)*\\\\[1-9]");
+
+    /** Rules for class names. */
+    private final List<Pattern> classes;
+
+    /** Rules for test names. */
+    private final List<Pattern> tests;
+
+    /** Rules for error types. */
+    private final List<Pattern> errors;
+
+    /**
+     * @param rules The rules, one per line (may be null).
+     * @throws java.util.regex.PatternSyntaxException If a regular expression is invalid.
+     */
+    public FailureFilter(final String rules) {
+        List<String> classRules = new ArrayList<String>();
+        List<String> testRules = new ArrayList<String>();
+        List<String> errorRules = new ArrayList<String>();
+        for (String line : (rules == null ? "" : rules).split("\n")) {
+            String rule = line.trim();
+            if (isBlank(rule)) {
+                continue;
+            }
+            int colon = rule.indexOf(':');
+            String field = colon < 0 ? "" : rule.substring(0, colon);
+            if ("class".equals(field)) {
+                classRules.add(toRegex(rule.substring(colon + 1)));
+            } else if ("test".equals(field)) {
+                testRules.add(toRegex(rule.substring(colon + 1)));
+            } else if ("error".equals(field)) {
+                errorRules.add(toRegex(rule.substring(colon + 1)));
+            } else {
+                String regex = toRegex(rule);
+                classRules.add(regex);
+                testRules.add(regex);
+                errorRules.add(regex);
+            }
+        }
+        classes = combine(classRules);
+        tests = combine(testRules);
+        errors = combine(errorRules);
+    }
+
+    /**
+     * @param result A failure.
+     * @return True if the failure should be ignored.
+     */
+    @Override
+    public boolean apply(final UniformTestResult result) {
+        return matches(classes, result.getClassName())
+                || matches(tests, result.getTestName())
+                || matches(errors, result.getErrorType())
+                || result.mentions(SKIPPED);
+    }
+
+    /**
+     * @param patterns The rules for a field.
+     * @param value The value of the field (may be null).
+     * @return True if a rule matches the whole value.
+     */
+    private static boolean matches(final List<Pattern> patterns, final String value) {
+        if (value != null) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(value).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param rules Regular expressions.
+     * @return A single pattern that matches any of them, plus one for each rule with a backreference.
+     */
+    private static List<Pattern> combine(final List<String> rules) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        StringBuilder combined = new StringBuilder();
+        for (String rule : rules) {
+            if (BACKREFERENCE.matcher(rule).find()) {
+                patterns.add(Pattern.compile(rule));
+            } else {
+                combined.append(combined.length() == 0 ? "(?:" : "|(?:").append(rule).append(")");
+            }
+        }
+        if (combined.length() > 0) {
+            patterns.add(0, Pattern.compile(combined.toString()));
+        }
+        return patterns;
+    }
+
+    /**
+     * @param pattern A regular expression between slashes, a glob, or a literal.
+     * @return The equivalent regular expression.
+     */
+    static String toRegex(final String pattern) {
+        String rule = pattern.trim();
+        if (rule.length() > 1 && rule.startsWith("/") && rule.endsWith("/")) {
+            String regex = rule.substring(1, rule.length() - 1);
+            // compile alone so that errors refer to the rule rather than the combined pattern
+            Pattern.compile(regex);
+            return regex;
+        }
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : rule.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format("classes %s; tests %s; errors %s", classes, tests, errors);
+    }
+
+}
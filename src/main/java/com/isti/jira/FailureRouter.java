@@ -0,0 +1,147 @@
+package com.isti.jira;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+
+/**
+ * Sends failures to different Jira projects (or issue types, or servers), one rule per line:
+ *
+ *   class:com.example.db.* => DB
+ *   test:*Integration* => QA, Task, http://jira2.example.com
+ *
+ * The left side is a rule as for FailureFilter; the right side is the project, then optionally the issue
+ * type and server URL (anything omitted is the reporter's own setting).  The first matching rule wins, and
+ * failures that match no rule go to the reporter's own project.
+ */
+public final class FailureRouter {
+
+    /** Separates the rule from the destination. */
+    public static final String ARROW = "=>";
+
+    /**
+     * A rule and where to send the failures that match it.
+     */
+    public static final class Route {
+
+        /** Matches the failures for this route. */
+        private final FailureFilter filter;
+
+        /** The Jira project. */
+        private final String project;
+
+        /** The Jira issue type (null for the reporter's own). */
+        private final String issueType;
+
+        /** The Jira URL (null for the reporter's own). */
+        private final String serverUrl;
+
+        /**
+         * @param filter Matches the failures for this route.
+         * @param project The Jira project.
+         * @param issueType The Jira issue type (null for the reporter's own).
+         * @param serverUrl The Jira URL (null for the reporter's own).
+         */
+        private Route(final FailureFilter filter,
+                      final String project,
+                      final String issueType,
+                      final String serverUrl) {
+            this.filter = filter;
+            this.project = project;
+            this.issueType = issueType;
+            this.serverUrl = serverUrl;
+        }
+
+        /**
+         * @param result A failure.
+         * @return True if the failure matches the rule.
+         */
+        public boolean matches(final UniformTestResult result) {
+            return filter.apply(result);
+        }
+
+        /**
+         * @return The Jira project.
+         */
+        public String getProject() {
+            return project;
+        }
+
+        /**
+         * @return The Jira issue type (null for the reporter's own).
+         */
+        public String getIssueType() {
+            return issueType;
+        }
+
+        /**
+         * @return The Jira URL (null for the reporter's own).
+         */
+        public String getServerUrl() {
+            return serverUrl;
+        }
+
+    }
+
+    /** The routes, in order. */
+    private final List<Route> routes = new ArrayList<Route>();
+
+    /**
+     * @param rules The rules, one per line (may be null).
+     * @throws IllegalArgumentException If a rule has no destination.
+     * @throws java.util.regex.PatternSyntaxException If a regular expression is invalid.
+     */
+    public FailureRouter(final String rules) {
+        for (String line : (rules == null ? "" : rules).split("\n")) {
+            if (isBlank(line)) {
+                continue;
+            }
+            int arrow = line.lastIndexOf(ARROW);
+            if (arrow < 0 || isBlank(line.substring(0, arrow))) {
+                throw new IllegalArgumentException(format("Expected 'rule %s project': %s", ARROW, line.trim()));
+            }
+            String[] destination = line.substring(arrow + ARROW.length()).split(",", 3);
+            if (isBlank(destination[0])) {
+                throw new IllegalArgumentException(format("No project given: %s", line.trim()));
+            }
+            routes.add(new Route(new FailureFilter(line.substring(0, arrow)),
+                                 destination[0].trim(),
+                                 part(destination, 1),
+                                 part(destination, 2)));
+        }
+    }
+
+    /**
+     * @param parts The parts of a destination.
+     * @param index The part wanted.
+     * @return The part (null if missing or blank).
+     */
+    private static String part(final String[] parts, final int index) {
+        return parts.length > index && !isBlank(parts[index]) ? parts[index].trim() : null;
+    }
+
+    /**
+     * @return The routes, in order.
+     */
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * @param result A failure.
+     * @return The first route that matches (null if none does).
+     */
+    public Route route(final UniformTestResult result) {
+        for (Route route : routes) {
+            if (route.matches(result)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+}
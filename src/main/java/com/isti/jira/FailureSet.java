@@ -0,0 +1,265 @@
+package com.isti.jira;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+
+/**
+ * The distinct failures from a build, accumulated in a single pass as the test results are unpacked.
+ * Each failure is filtered, hashed and deduplicated as it arrives, so nothing else needs to hold the full
+ * list.
+ *
+ * Until classify() is called we keep the first result for each hash (results render their descriptions
+ * lazily, so this is cheap).  After that only the results that need a new issue are kept; everything
+ * else is just a hash.
+ *
+ * If a build has very many new failures (a "storm", usually caused by broken infrastructure rather than
+ * broken code) then cluster() groups them by error signature, so that Jira gets one issue per cause.  A
+ * failure whose cluster still has an open issue stays in the cluster after the storm has died down, so the
+ * cluster's issue is not closed and replaced by one issue per failure.
+ */
+public final class FailureSet {
+
+    /** The maximum number of tests listed in the description of a cluster. */
+    static final int MAX_LISTED = 100;
+
+    /** The maximum length of a signature taken from the error text. */
+    private static final int MAX_SIGNATURE = 100;
+
+    /** Prefixes the error of a cluster (so its hash differs from any single failure). */
+    private static final String STORM = "Failure storm: ";
+
+    /** The git repo details (for the hashes). */
+    private final RepoDetails repo;
+
+    /** Failures that match this are skipped. */
+    private final Predicate<UniformTestResult> skip;
+
+    /** Destination for messages. */
+    private final Logger logger;
+
+    /** The hashes of all the failures. */
+    private final Set<String> hashes = new HashSet<String>();
+
+    /** The first result for each hash that may need an issue, in order of arrival. */
+    private final Map<String, UniformTestResult> results = new LinkedHashMap<String, UniformTestResult>();
+
+    /** The number of failures added (including skipped and duplicates). */
+    private int count = 0;
+
+    /**
+     * @param repo The git repo details (for the hashes).
+     * @param skip Failures that match this are skipped.
+     * @param logger Destination for messages.
+     */
+    public FailureSet(final RepoDetails repo, final Predicate<UniformTestResult> skip, final Logger logger) {
+        this.repo = repo;
+        this.skip = skip;
+        this.logger = logger;
+    }
+
+    /**
+     * @param result A failure from the build.
+     */
+    public void add(final UniformTestResult result) {
+        count++;
+        // names rather than the result, since its summary is only rendered if an issue is needed
+        logger.debug("Adding %s (class %s)", result.getTestName(), result.getClassName());
+        if (skip.apply(result)) {
+            logger.repeated("Skipping", "Skipping %s (class %s)", result.getTestName(), result.getClassName());
+        } else {
+            String hash = result.getHash(repo);
+            if (hashes.add(hash)) {
+                results.put(hash, result);
+            } else {
+                logger.repeated("Ignoring duplicate", "Ignoring duplicate %s (class %s)", result.getTestName(),
+                                result.getClassName());
+            }
+        }
+    }
+
+    /**
+     * @param failures Failures from the build.
+     * @return This set (for chaining).
+     */
+    public FailureSet addAll(final Iterable<UniformTestResult> failures) {
+        for (UniformTestResult result : failures) {
+            add(result);
+        }
+        return this;
+    }
+
+    /**
+     * Call before classify().  Divide the failures between several sets (eg one per Jira project), reusing
+     * the hashes already calculated.
+     *
+     * @param chooser Gives the index of the set for each failure.
+     * @param parts The number of sets.
+     * @return The sets (some may be empty).
+     */
+    public List<FailureSet> split(final Function<UniformTestResult, Integer> chooser, final int parts) {
+        List<FailureSet> sets = new ArrayList<FailureSet>();
+        for (int i = 0; i < parts; i++) {
+            sets.add(new FailureSet(repo, skip, logger));
+        }
+        for (Map.Entry<String, UniformTestResult> entry : results.entrySet()) {
+            FailureSet set = sets.get(chooser.apply(entry.getValue()));
+            set.count++;
+            set.hashes.add(entry.getKey());
+            set.results.put(entry.getKey(), entry.getValue());
+        }
+        return sets;
+    }
+
+    /**
+     * Discard the results for failures that are already in Jira, keeping only their hashes.
+     *
+     * @param known The hashes of failures that already have issues in Jira.
+     */
+    public void classify(final Set<String> known) {
+        for (Iterator<Map.Entry<String, UniformTestResult>> entries = results.entrySet().iterator();
+             entries.hasNext();) {
+            Map.Entry<String, UniformTestResult> entry = entries.next();
+            if (known.contains(entry.getKey())) {
+                logger.repeated("Jira already contains", "Jira already contains %s (hash %s)",
+                                entry.getValue().getTestName(), entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Call after classify().  If more than threshold failures need an issue, replace each group of
+     * failures that share an error signature with a single result for the whole group.  Otherwise only
+     * the failures whose group already has an issue (from an earlier storm) are replaced.  The hashes of
+     * the groups are added to the set (so the matching issues stay open while the failures last).
+     *
+     * @param threshold The number of failures above which to cluster (zero or less to never cluster).
+     * @param known The hashes of failures that already have issues in Jira.
+     * @return True if any failures were clustered.
+     */
+    public boolean cluster(final int threshold, final Set<String> known) {
+        if (threshold <= 0 || results.isEmpty()) {
+            return false;
+        }
+        Map<String, List<UniformTestResult>> clusters = new LinkedHashMap<String, List<UniformTestResult>>();
+        for (UniformTestResult result : results.values()) {
+            String signature = signature(result);
+            if (!clusters.containsKey(signature)) {
+                clusters.put(signature, new ArrayList<UniformTestResult>());
+            }
+            clusters.get(signature).add(result);
+        }
+        boolean storm = results.size() > threshold;
+        if (storm) {
+            logger.info("Failure storm: %d new failures with %d distinct errors", results.size(), clusters.size());
+        }
+        boolean clustered = false;
+        Map<String, UniformTestResult> remaining = new LinkedHashMap<String, UniformTestResult>();
+        for (Map.Entry<String, List<UniformTestResult>> entry : clusters.entrySet()) {
+            List<UniformTestResult> members = entry.getValue();
+            // the aggregate lists every member, so it is only built if needed
+            String hash = new UniformTestResult(null, null, STORM + entry.getKey()).getHash(repo);
+            if (known.contains(hash)) {
+                clustered = true;
+                hashes.add(hash);
+                logger.repeated("Jira already contains", "Jira already contains the failure storm '%s' (%d tests)",
+                                entry.getKey(), members.size());
+            } else if (storm && members.size() > 1) {
+                clustered = true;
+                hashes.add(hash);
+                remaining.put(hash, aggregate(entry.getKey(), members));
+            } else {
+                for (UniformTestResult result : members) {
+                    remaining.put(result.getHash(repo), result);
+                }
+            }
+        }
+        if (clustered) {
+            results.clear();
+            results.putAll(remaining);
+        }
+        return clustered;
+    }
+
+    /**
+     * @param result A failure.
+     * @return The first line of the error (with the error type, if known and not already there), with
+     *         volatile text masked.
+     */
+    static String signature(final UniformTestResult result) {
+        String type = result.getErrorType();
+        String error = result.getError() == null ? "" : result.getError().trim();
+        int end = error.indexOf('\n');
+        String line = end < 0 ? error : error.substring(0, end).trim();
+        if (type != null && !line.startsWith(type)) {
+            line = line.isEmpty() ? type : format("%s: %s", type, line);
+        }
+        // results normalise their errors as they are read, but not those built from plain text
+        line = Normaliser.get(Normaliser.Type.generic).normalise(line);
+        return line.length() > MAX_SIGNATURE ? line.substring(0, MAX_SIGNATURE) : line;
+    }
+
+    /**
+     * @param signature The error signature shared by the failures.
+     * @param members The failures.
+     * @return A single result that lists the failures.
+     */
+    private static UniformTestResult aggregate(final String signature, final List<UniformTestResult> members) {
+        StringBuilder description = new StringBuilder(
+                format("%d tests failed with the same error.\n\nError: %s\n\nTests:\n", members.size(), signature));
+        boolean isNew = false;
+        for (int i = 0; i < members.size(); i++) {
+            if (i < MAX_LISTED) {
+                description.append(members.get(i).getSummary()).append("\n");
+            }
+            isNew |= members.get(i).isNew();
+        }
+        if (members.size() > MAX_LISTED) {
+            description.append(format("... and %d more\n", members.size() - MAX_LISTED));
+        }
+        return new UniformTestResult(format("%d tests failed with '%s'", members.size(), signature),
+                                     description.toString(), STORM + signature, isNew);
+    }
+
+    /**
+     * @return The hashes of all the failures (after filtering).
+     */
+    public Set<String> getHashes() {
+        return Collections.unmodifiableSet(hashes);
+    }
+
+    /**
+     * @return One result for each distinct failure that may need a new issue, in order of arrival.
+     */
+    public Collection<UniformTestResult> getResults() {
+        return Collections.unmodifiableCollection(results.values());
+    }
+
+    /**
+     * @return The git repo details used for the hashes.
+     */
+    public RepoDetails getRepo() {
+        return repo;
+    }
+
+    /**
+     * @return The number of failures added (including skipped and duplicates).
+     */
+    public int getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.isti.jira;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+
+/**
+ * The recent pass/fail history of each failure (by CATS Hash) for a single target (Jira project and git
+ * branch), so that flaky tests can be kept out of Jira.
+ *
+ * For each hash we keep a 64 bit ring (bit 0 is the most recent build, set if the failure occurred) and the
+ * number of builds recorded.  Hashes that have not failed in 64 builds are forgotten.  Hashes that have no
+ * history (eg failure storm clusters) are always allowed to open and close, as before.
+ *
+ * The file is small (one line per recently failing hash) and is rewritten after each build.  A copy()
+ * (eg for an agent) is held in memory only.
+ */
+public final class FlakeHistory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of builds remembered. */
+    public static final int LENGTH = Long.SIZE;
+
+    /** The file encoding. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The file the history is stored in (null for a copy). */
+    private final File file;
+
+    /** For each hash, the bits (set for failures) and the number of builds recorded. */
+    private final Map<String, long[]> entries = new HashMap<String, long[]>();
+
+    /**
+     * @param file The file the history is stored in (read if it exists).
+     */
+    public FlakeHistory(final File file) {
+        this.file = file;
+        if (file.exists()) {
+            read();
+        }
+    }
+
+    /**
+     * @param entries The bits and count for each hash (copied).
+     */
+    private FlakeHistory(final Map<String, long[]> entries) {
+        this.file = null;
+        for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+            this.entries.put(entry.getKey(), entry.getValue().clone());
+        }
+    }
+
+    /**
+     * @return A copy of the history, held in memory only.
+     */
+    public synchronized FlakeHistory copy() {
+        return new FlakeHistory(entries);
+    }
+
+    /**
+     * Record a build and save the history.
+     *
+     * @param failing The hashes of the failures in the build.
+     */
+    public synchronized void record(final Collection<String> failing) {
+        for (Iterator<long[]> values = entries.values().iterator(); values.hasNext();) {
+            long[] entry = values.next();
+            entry[0] <<= 1;
+            entry[1] = Math.min(LENGTH, entry[1] + 1);
+            if (entry[0] == 0) {
+                values.remove();
+            }
+        }
+        for (String hash : failing) {
+            long[] entry = entries.get(hash);
+            if (entry == null) {
+                entries.put(hash, new long[]{1, 1});
+            } else {
+                entry[0] |= 1;
+            }
+        }
+        if (file != null) {
+            write();
+        }
+    }
+
+    /**
+     * @param hash The CATS Hash of a failure.
+     * @param failures The number of failures needed.
+     * @param builds The number of recent builds in which they must occur.
+     * @return True if the failure occurred often enough to be reported.
+     */
+    public synchronized boolean shouldOpen(final String hash, final int failures, final int builds) {
+        long[] entry = entries.get(hash);
+        return entry == null || Long.bitCount(entry[0] & mask(builds)) >= failures;
+    }
+
+    /**
+     * @param hash The CATS Hash of a failure.
+     * @param passes The number of consecutive passes needed.
+     * @return True if the failure has been absent for long enough to be closed.
+     */
+    public synchronized boolean shouldClose(final String hash, final int passes) {
+        long[] entry = entries.get(hash);
+        return entry == null || (entry[1] >= Math.min(LENGTH, passes) && (entry[0] & mask(passes)) == 0);
+    }
+
+    /**
+     * @param hash The CATS Hash of a failure.
+     * @return True if the failure occurred in one of the recent builds.
+     */
+    public synchronized boolean knows(final String hash) {
+        return entries.containsKey(hash);
+    }
+
+    /**
+     * @param builds A number of builds.
+     * @return A mask for the bits of the most recent builds.
+     */
+    private static long mask(final int builds) {
+        return builds >= LENGTH ? -1L : (1L << Math.max(builds, 0)) - 1;
+    }
+
+    /**
+     * Read the history (malformed lines are ignored).
+     */
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length == 3) {
+                        try {
+                            entries.put(fields[0], new long[]{Long.parseLong(fields[1]),
+                                                              Long.parseLong(fields[2])});
+                        } catch (NumberFormatException e) {
+                            // ignore partial line
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the history to a temporary file, then replace the old file.
+     */
+    private void write() {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException(format("Cannot create %s", parent));
+            }
+            File temp = new File(parent, file.getName() + ".tmp");
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+            try {
+                for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                    out.write(format("%s %d %d\n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException(format("Cannot replace %s", file));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import com.atlassian.jira.rest.client.api.AuthenticationHandler;
 import com.atlassian.jira.rest.client.api.GetCreateIssueMetadataOptions;
 import com.atlassian.jira.rest.client.api.JiraRestClient;
 import com.atlassian.jira.rest.client.api.RestClientException;
+import com.atlassian.jira.rest.client.api.domain.BasicIssue;
 import com.atlassian.jira.rest.client.api.domain.BasicProject;
 import com.atlassian.jira.rest.client.api.domain.CimIssueType;
 import com.atlassian.jira.rest.client.api.domain.CimProject;
@@ -11,6 +12,8 @@ import com.atlassian.jira.rest.client.api.domain.Field;
 import com.atlassian.jira.rest.client.api.domain.Issue;
 import com.atlassian.jira.rest.client.api.domain.IssueType;
 import com.atlassian.jira.rest.client.api.domain.Transition;
+import com.atlassian.jira.rest.client.api.domain.input.FieldInput;
+import com.atlassian.jira.rest.client.api.domain.input.IssueInput;
 import com.atlassian.jira.rest.client.api.domain.input.IssueInputBuilder;
 import com.atlassian.jira.rest.client.api.domain.input.TransitionInput;
 import com.atlassian.jira.rest.client.auth.AnonymousAuthenticationHandler;
@@ -20,14 +23,23 @@ import com.atlassian.util.concurrent.Promise;
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import static com.isti.jira.Defaults.Key;
 import static java.lang.String.format;
@@ -57,6 +69,21 @@ public final class JiraClient {
     /** This field must be added to JIRA to store the git commit under test. */
     public static final String CATS_COMMIT = "CATS Commit";
 
+    /** If this field is added to JIRA, refreshed issues record the last failing build (see updateIssue). */
+    public static final String CATS_BUILD = "CATS Build";
+
+    /** If this field is added to JIRA, refreshed issues record the number of failures (see updateIssue). */
+    public static final String CATS_COUNT = "CATS Count";
+
+    /** The name of the attachment used when a description is truncated. */
+    public static final String DETAILS = "failure-details.txt.gz";
+
+    /** Appended to truncated descriptions (the argument is the attachment name). */
+    private static final String TRUNCATED = "\n\n... (truncated; the full text is attached as %s)";
+
+    /** Encoding for attachments. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Allow anonymous connections (possible but useless).
      */
@@ -67,6 +94,11 @@ public final class JiraClient {
      */
     private static final Defaults DEFAULTS = new Defaults();
 
+    /**
+     * Source of the settings not given (DEFAULTS unless resolved elsewhere).
+     */
+    private final Defaults defaults;
+
     /**
      * The underlying client that does the work of connecting to Jira.
      */
@@ -77,6 +109,17 @@ public final class JiraClient {
      */
     private Map<String, Field> cachedFields = null;
 
+    /**
+     * A cache of issue types, by project.  Access indirectly via listIssueTypes().
+     */
+    private final Map<String, Iterable<CimIssueType>> cachedIssueTypes =
+            new HashMap<String, Iterable<CimIssueType>>();
+
+    /**
+     * Details waiting to be attached to issues just created (see attachQueuedDetails()).
+     */
+    private final List<QueuedDetails> queuedDetails = new ArrayList<QueuedDetails>();
+
     /**
      * The URL to connect to (used in error messages).
      */
@@ -98,6 +141,17 @@ public final class JiraClient {
      * @param password The password to use in the connection.
      */
     public JiraClient(final String url, final String user, final String password) {
+        this(url, user, password, DEFAULTS);
+    }
+
+    /**
+     * @param url The URL to connect to.
+     * @param user The Jira user.
+     * @param password The password to use in the connection.
+     * @param defaults The settings to use for anything not given (eg resolved on the controller).
+     */
+    public JiraClient(final String url, final String user, final String password, final Defaults defaults) {
+        this.defaults = defaults;
         client = getClient(url, user, password);
         this.savedUrl = url;
     }
@@ -108,14 +162,14 @@ public final class JiraClient {
      * @param password A null password triggers an anon handler.
      * @return A Jira client that is used to call the REST API.
      */
-    private static JiraRestClient getClient(final String url, final String user, final String password) {
+    private JiraRestClient getClient(final String url, final String user, final String password) {
         try {
             AsynchronousJiraRestClientFactory factory = new AsynchronousJiraRestClientFactory();
-            URI jiraServerUri = new URI(DEFAULTS.withDefault(Key.url, url));
+            URI jiraServerUri = new URI(defaults.withDefault(Key.url, url));
             return factory.create(jiraServerUri, getAuthHandler(
                     jiraServerUri,
-                    DEFAULTS.withDefault(Key.user, user),
-                    DEFAULTS.withDefault(Key.password, password, ALLOW_ANON)));
+                    defaults.withDefault(Key.user, user),
+                    defaults.withDefault(Key.password, password, ALLOW_ANON)));
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
@@ -152,7 +206,7 @@ public final class JiraClient {
      * @return A list of all projects.
      */
     public Iterable<BasicProject> listProjects() {
-        return claim(client.getProjectClient().getAllProjects());
+        return claim("projects", client.getProjectClient().getAllProjects());
     }
 
     /**
@@ -160,14 +214,19 @@ public final class JiraClient {
      * @return A list of all issue types for the project.
      */
     public Iterable<CimIssueType> listIssueTypes(final String project) {
-        String p = DEFAULTS.withDefault(Key.project, project);
-        Iterator<CimProject> info = claim(
-                client.getIssueClient().getCreateIssueMetadata(
-                    new GetCreateIssueMetadataOptions(null, null, null, singletonList(p), null))).iterator();
-        if (info.hasNext()) {
-            return info.next().getIssueTypes();
-        } else {
-            throw new RuntimeException(format("Could not find project %s", p));
+        String p = defaults.withDefault(Key.project, project);
+        synchronized (cachedIssueTypes) {
+            if (!cachedIssueTypes.containsKey(p)) {
+                Iterator<CimProject> info = claim("metadata",
+                        client.getIssueClient().getCreateIssueMetadata(
+                            new GetCreateIssueMetadataOptions(null, null, null, singletonList(p), null))).iterator();
+                if (info.hasNext()) {
+                    cachedIssueTypes.put(p, info.next().getIssueTypes());
+                } else {
+                    throw new RuntimeException(format("Could not find project %s", p));
+                }
+            }
+            return cachedIssueTypes.get(p);
         }
     }
 
@@ -179,7 +238,7 @@ public final class JiraClient {
      * @return A type known to the system that matches the name given by the user.
      */
     private CimIssueType matchIssueType(final String issueType, final Iterable<CimIssueType> types) {
-        String type = DEFAULTS.withDefault(Key.issue_type, issueType);
+        String type = defaults.withDefault(Key.issue_type, issueType);
         for (CimIssueType issue : types) {
             if (issue.getName().equalsIgnoreCase(type)) {
                 return issue;
@@ -189,17 +248,25 @@ public final class JiraClient {
     }
 
     /**
-     * @param fieldName The field name
-     * @return A field with the given name, if it is unique.
+     * Read the known fields (if not already cached).  This can be called early, in parallel with
+     * other requests, to take the round trip off the critical path.
      */
-    private synchronized Field matchFieldName(final String fieldName) {
+    public synchronized void prefetchFields() {
         if (null == cachedFields) {
             cachedFields = new HashMap<String, Field>();
-            for (Field field: claim(client.getMetadataClient().getFields())) {
+            for (Field field: claim("fields", client.getMetadataClient().getFields())) {
                 // use null to indicate duplicates
                 cachedFields.put(field.getName(), cachedFields.containsKey(field.getName()) ? null : field);
             }
         }
+    }
+
+    /**
+     * @param fieldName The field name
+     * @return A field with the given name, if it is unique.
+     */
+    private synchronized Field matchFieldName(final String fieldName) {
+        prefetchFields();
         if (cachedFields.containsKey(fieldName)) {
             if (null == cachedFields.get(fieldName)) {
                 throw new RuntimeException(format("Field name '%s' is not unique", fieldName));
@@ -211,6 +278,39 @@ public final class JiraClient {
         }
     }
 
+    /**
+     * @param fieldName The field name
+     * @return True if a single field with that name exists.
+     */
+    public synchronized boolean hasField(final String fieldName) {
+        prefetchFields();
+        return cachedFields.get(fieldName) != null;
+    }
+
+    /**
+     * Bring an existing issue up to date with the latest failure.  The build and count are only set if
+     * the optional fields exist.
+     *
+     * @param key The issue key.
+     * @param repo The git repository details (for the commit).
+     * @param build The URL of the latest failing build.
+     * @param count The number of builds in which the failure occurred.
+     */
+    public void updateIssue(final String key, final RepoDetails repo, final String build, final int count) {
+        List<FieldInput> fields = new ArrayList<FieldInput>();
+        fields.add(new FieldInput(matchFieldName(CATS_COMMIT).getId(), repo.getCommit()));
+        if (hasField(CATS_BUILD)) {
+            fields.add(new FieldInput(matchFieldName(CATS_BUILD).getId(), build));
+        }
+        if (hasField(CATS_COUNT)) {
+            Field field = matchFieldName(CATS_COUNT);
+            boolean numeric = field.getSchema() != null && "number".equals(field.getSchema().getType());
+            fields.add(new FieldInput(field.getId(), numeric ? (Object) (double) count : Integer.toString(count)));
+        }
+        claim("update", client.getIssueClient().updateIssue(key, IssueInput.createWithFields(
+                fields.toArray(new FieldInput[fields.size()]))));
+    }
+
     /**
      * Create an issue.  All the parameters below are provided with defaults and the issue type is expanded
      * against the project's known issue types.
@@ -224,22 +324,141 @@ public final class JiraClient {
                             final String issueType,
                             final RepoDetails repo,
                             final UniformTestResult result) {
-        IssueType type = matchIssueType(issueType, listIssueTypes(project));
-        IssueInputBuilder issueBuilder =
-                new IssueInputBuilder(DEFAULTS.withDefault(Key.project, project), type.getId());
-        issueBuilder.setSummary(DEFAULTS.withDefault(Key.summary, result.getSummary()));
-        issueBuilder.setDescription(DEFAULTS.withDefault(Key.description, result.getDescription()));
-        issueBuilder.setFieldValue(
-                matchFieldName(CATS_REPOSITORY).getId(),
-                DEFAULTS.withDefault(Key.repository, repo.getURL(), true));
-        issueBuilder.setFieldValue(
-                matchFieldName(CATS_BRANCH).getId(),
-                DEFAULTS.withDefault(Key.branch, repo.getBranch(), true));
-        issueBuilder.setFieldValue(
-                matchFieldName(CATS_COMMIT).getId(),
-                DEFAULTS.withDefault(Key.branch, repo.getCommit(), true));
-        issueBuilder.setFieldValue(matchFieldName(CATS_HASH).getId(), result.getHash(repo));
-        claim(client.getIssueClient().createIssue(issueBuilder.build()));
+        Trace.Span span = Trace.start("create issue");
+        try {
+            IssueType type = matchIssueType(issueType, listIssueTypes(project));
+            IssueInputBuilder issueBuilder =
+                    new IssueInputBuilder(defaults.withDefault(Key.project, project), type.getId());
+            issueBuilder.setSummary(defaults.withDefault(Key.summary, result.getSummary()));
+            String description = defaults.withDefault(Key.description, result.getDescription());
+            int budget = getDescriptionBudget();
+            boolean truncated = budget > 0 && description.length() > budget;
+            if (truncated) {
+                description = description.substring(0, budget) + format(TRUNCATED, DETAILS);
+            }
+            issueBuilder.setDescription(description);
+            span.note("chars", description.length());
+            issueBuilder.setFieldValue(
+                    matchFieldName(CATS_REPOSITORY).getId(),
+                    defaults.withDefault(Key.repository, repo.getURL(), true));
+            issueBuilder.setFieldValue(
+                    matchFieldName(CATS_BRANCH).getId(),
+                    defaults.withDefault(Key.branch, repo.getBranch(), true));
+            issueBuilder.setFieldValue(
+                    matchFieldName(CATS_COMMIT).getId(),
+                    defaults.withDefault(Key.branch, repo.getCommit(), true));
+            issueBuilder.setFieldValue(matchFieldName(CATS_HASH).getId(), result.getHash(repo));
+            BasicIssue issue = claim("create", client.getIssueClient().createIssue(issueBuilder.build()));
+            Metrics.get().increment("issues created");
+            if (truncated) {
+                // the same URI that Jira gives as the issue's attachments link, without fetching the issue
+                synchronized (queuedDetails) {
+                    queuedDetails.add(new QueuedDetails(issue.getKey(), URI.create(issue.getSelf() + "/attachments"),
+                                                        result));
+                }
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Attach the full details of each failure whose description createIssue() truncated.  This is best
+     * effort: the issues already exist, so an upload that fails is reported and dropped.  Call it once the
+     * creates are done, so that uploads never hold them back.
+     *
+     * @param logger Destination for messages.
+     * @return The number of issues that had details attached.
+     */
+    public int attachQueuedDetails(final Logger logger) {
+        List<QueuedDetails> queued;
+        synchronized (queuedDetails) {
+            queued = new ArrayList<QueuedDetails>(queuedDetails);
+            queuedDetails.clear();
+        }
+        int attached = 0;
+        for (QueuedDetails details : queued) {
+            try {
+                attachDetails(details.uri, details.result);
+                attached++;
+            } catch (RuntimeException e) {
+                logger.info("Could not attach the full details to %s: %s", details.key, e.getMessage());
+            }
+        }
+        return attached;
+    }
+
+    /**
+     * Attach everything known about a failure to an issue, gzipped.  The text is written piece by piece to
+     * a temporary file and the upload streams from that, so it is never held in memory as a whole.
+     *
+     * @param uri The issue's attachments URI.
+     * @param result The failure.
+     */
+    private void attachDetails(final URI uri, final UniformTestResult result) {
+        try {
+            File temp = File.createTempFile("jira-details-", ".gz");
+            try {
+                Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), UTF8);
+                try {
+                    result.writeDetails(out);
+                } finally {
+                    out.close();
+                }
+                InputStream in = new FileInputStream(temp);
+                Trace.Span span = Trace.start("attach details").note("bytes", temp.length());
+                try {
+                    claim("attach", client.getIssueClient().addAttachment(uri, in, DETAILS));
+                } finally {
+                    span.end();
+                    in.close();
+                }
+            } finally {
+                if (!temp.delete()) {
+                    temp.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Details to attach to a new issue (see attachQueuedDetails()).
+     */
+    private static final class QueuedDetails {
+
+        /** The issue key (for messages). */
+        private final String key;
+
+        /** The issue's attachments URI. */
+        private final URI uri;
+
+        /** The failure. */
+        private final UniformTestResult result;
+
+        /**
+         * @param key The issue key (for messages).
+         * @param uri The issue's attachments URI.
+         * @param result The failure.
+         */
+        private QueuedDetails(final String key, final URI uri, final UniformTestResult result) {
+            this.key = key;
+            this.uri = uri;
+            this.result = result;
+        }
+
+    }
+
+    /**
+     * @return The maximum length of a description (zero for no limit).
+     */
+    private int getDescriptionBudget() {
+        try {
+            return Integer.parseInt(defaults.withDefault(Key.max_description, null, true));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     /**
@@ -253,20 +472,20 @@ public final class JiraClient {
     public Iterable<Issue> listUnresolvedIssues(final String project,
                                                 final String issueType,
                                                 final RepoDetails repo) {
-        String p = DEFAULTS.withDefault(Key.project, project);
+        String p = defaults.withDefault(Key.project, project);
         IssueType type = matchIssueType(issueType, listIssueTypes(p));
-        String role = DEFAULTS.withDefault(Key.role);
+        String role = defaults.withDefault(Key.role);
         StringBuilder jsql = new StringBuilder(
                 format("project=\"%s\" and %s=currentUser() and issuetype=\"%s\" and resolution=\"unresolved\"",
                         p, role, type.getName()));
-        String url = DEFAULTS.withDefault(Key.repository, repo.getURL(), true);
+        String url = defaults.withDefault(Key.repository, repo.getURL(), true);
         if (!isBlank(url)) {
             // both searches are on text fields and require "contains".
             // for an exact match they also require quotes.
             // in jql that means "foo"~"\"bar\""
             jsql.append(format(" and \"%s\"~\"\\\"%s\\\"\"", CATS_REPOSITORY, url));
         }
-        String branch = DEFAULTS.withDefault(Key.branch, repo.getBranch(), true);
+        String branch = defaults.withDefault(Key.branch, repo.getBranch(), true);
         if (!isBlank(branch)) {
             jsql.append(format(" and \"%s\"~\"\\\"%s\\\"\"", CATS_BRANCH, branch));
         }
@@ -274,19 +493,33 @@ public final class JiraClient {
         // for a timeout are for v1.0 of the client.  for v2.0 i cannot see how to set this.  so
         // instead we request smaller chunks (the default size is 50 and works ok) and accumulate.
         ArrayList<Issue> issues = new ArrayList<Issue>();
-        while (true) {
-    		Iterable<Issue> chunk =
-    				claim(client.getSearchClient().searchJql(jsql.toString(), ISSUES_REQUEST_SIZE, 
-    						issues.size(), null)).getIssues();
-    		Iterables.addAll(issues, chunk);
-    		if (Iterables.size(chunk) < ISSUES_REQUEST_SIZE) {
-    			return issues;
-    		} else if (issues.size() > TOTAL_ISSUES_LIMIT) {
-    			throw new RuntimeException(format("Too many known issues: over %d", issues.size()));
-    		}
+        Trace.Span span = Trace.start("list unresolved issues");
+        try {
+            for (int pages = 1; true; pages++) {
+                Iterable<Issue> chunk =
+                        claim("search", client.getSearchClient().searchJql(jsql.toString(), ISSUES_REQUEST_SIZE,
+                                issues.size(), null)).getIssues();
+                Iterables.addAll(issues, chunk);
+                if (Iterables.size(chunk) < ISSUES_REQUEST_SIZE) {
+                    span.note("pages", pages).note("issues", issues.size());
+                    return issues;
+                } else if (issues.size() > TOTAL_ISSUES_LIMIT) {
+                    throw new RuntimeException(format("Too many known issues: over %d", issues.size()));
+                }
+            }
+        } finally {
+            span.end();
         }
     }
 
+    /**
+     * @param key The issue key.
+     * @return The issue with that key.
+     */
+    public Issue getIssue(final String key) {
+        return claim("issue", client.getIssueClient().getIssue(key));
+    }
+
     /**
      * Find an issue that matches the information given.
      *
@@ -310,7 +543,7 @@ public final class JiraClient {
      * @return A list of transitions for that URI.
      */
     public Iterable<Transition> listTransitions(final URI uri) {
-        return claim(client.getIssueClient().getTransitions(uri));
+        return claim("transitions", client.getIssueClient().getTransitions(uri));
     }
 
     /**
@@ -321,7 +554,7 @@ public final class JiraClient {
      * @return A transition whose name matches that given, or an exception is raised.
      */
     private Transition matchTransitions(final String transitionName, final Iterable<Transition> transitions) {
-        String name = DEFAULTS.withDefault(Key.transition, transitionName);
+        String name = defaults.withDefault(Key.transition, transitionName);
         for (Transition transition : transitions) {
             if (transition.getName().equalsIgnoreCase(name)) {
                 return transition;
@@ -337,9 +570,15 @@ public final class JiraClient {
      * @param transitionName The name of the transition.
      */
     public void closeIssue(final Issue issue, final String transitionName) {
-        Transition transition = matchTransitions(transitionName, listTransitions(issue.getTransitionsUri()));
-        TransitionInput input = new TransitionInput(transition.getId());
-        claim(client.getIssueClient().transition(issue, input));
+        Trace.Span span = Trace.start("close issue");
+        try {
+            Transition transition = matchTransitions(transitionName, listTransitions(issue.getTransitionsUri()));
+            TransitionInput input = new TransitionInput(transition.getId());
+            claim("transition", client.getIssueClient().transition(issue, input));
+            Metrics.get().increment("issues closed");
+        } finally {
+            span.end();
+        }
     }
 
     /**
@@ -361,15 +600,22 @@ public final class JiraClient {
     }
 
     /**
-     * Unpack a promise while handling errors in as nice a way as possible.
+     * Unpack a promise while handling errors in as nice a way as possible.  The request was sent when the
+     * promise was made, just before this is called, so the time spent here is recorded as its latency.
      *
+     * @param operation The kind of request (for the metrics).
      * @param promise The promise to claim.
      * @param <T> The type of the result from the promise.
      * @return The result from the promise.
      */
-    private <T> T claim(final Promise<T> promise) {
+    private <T> T claim(final String operation, final Promise<T> promise) {
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        Trace.Span span = Trace.start(operation);
         try {
-            return promise.claim();
+            T result = promise.claim();
+            failed = false;
+            return result;
         } catch (RestClientException e) {
             Optional<Integer> code = e.getStatusCode();
             if (code.isPresent()) {
@@ -389,6 +635,9 @@ public final class JiraClient {
             } else {
                 throw e;
             }
+        } finally {
+            span.end();
+            Metrics.get().recordCall(operation, System.currentTimeMillis() - start, failed);
         }
     }
 
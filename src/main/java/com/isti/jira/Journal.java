@@ -0,0 +1,347 @@
+package com.isti.jira;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An append-only record of planned Jira operations.  Operations are written (and flushed to disk) before
+ * they are executed, and marked complete afterwards, so that work interrupted by a restart or a Jira
+ * outage can be replayed later.
+ *
+ * Each line is either "P id field..." (planned) or "D id" (done), with fields URL-encoded and separated
+ * by tabs.  A newer plan for a target supersedes any older operations still pending for that target (the
+ * new plan was made against the current state of Jira, so already includes whatever they would have done).
+ * The file is truncated whenever nothing is pending.  Since a busy controller may always have something
+ * pending, the file is also compacted (rewritten with only the pending operations) once it has COMPACT_AT
+ * lines and most of them are no longer needed.
+ */
+public final class Journal {
+
+    /** Marks a planned operation. */
+    private static final String PLANNED = "P";
+
+    /** Marks a completed operation. */
+    private static final String DONE = "D";
+
+    /** Encodes null fields (never produced by URLEncoder). */
+    private static final String NULL = "~";
+
+    /** The encoding used for the file and its fields. */
+    private static final String UTF8 = "UTF-8";
+
+    /** The number of lines at which the file is compacted (if most are no longer needed). */
+    public static final int COMPACT_AT = 1000;
+
+    /** The journal file. */
+    private final File file;
+
+    /** The number of lines at which the file is compacted. */
+    private final int compactAt;
+
+    /** The number of lines in the file. */
+    private int lineCount = 0;
+
+    /** Operations planned but not yet done, in order (null until the file is read). */
+    private Map<Long, Operation> pending = null;
+
+    /** The last sequence number used. */
+    private long lastId = 0;
+
+    /**
+     * @param file The journal file (created if missing).
+     */
+    public Journal(final File file) {
+        this(file, COMPACT_AT);
+    }
+
+    /**
+     * @param file The journal file (created if missing).
+     * @param compactAt The number of lines at which the file is compacted (this is for tests).
+     */
+    Journal(final File file, final int compactAt) {
+        this.file = file;
+        this.compactAt = compactAt;
+    }
+
+    /**
+     * Record operations before they are executed.  Any older operations still pending for the same
+     * target are marked done, since they are superseded by this plan.
+     *
+     * @param target Identifies the Jira project and git branch being synchronised.
+     * @param operations The operations to record (their ids are set here).
+     */
+    public synchronized void plan(final String target, final List<? extends Operation> operations) {
+        List<String[]> lines = new ArrayList<String[]>();
+        for (Iterator<Operation> old = getPending().values().iterator(); old.hasNext();) {
+            Operation operation = old.next();
+            if (operation.getTarget().equals(target)) {
+                lines.add(new String[]{DONE, Long.toString(operation.getId())});
+                old.remove();
+            }
+        }
+        record(operations, lines);
+    }
+
+    /**
+     * Record operations before they are executed, leaving anything already pending for the same
+     * target alone.  This is for partial plans, which cannot tell that older operations are no
+     * longer needed.
+     *
+     * @param operations The operations to record (their ids are set here).
+     */
+    public synchronized void add(final List<? extends Operation> operations) {
+        getPending();
+        record(operations, new ArrayList<String[]>());
+    }
+
+    /**
+     * @param operations The operations to record (their ids are set here).
+     * @param lines Lines to write before the operations.
+     */
+    private void record(final List<? extends Operation> operations, final List<String[]> lines) {
+        for (Operation operation : operations) {
+            operation.setId(++lastId);
+            lines.add(planned(operation));
+            pending.put(operation.getId(), operation);
+        }
+        if (pending.isEmpty()) {
+            truncate();
+        } else if (!lines.isEmpty()) {
+            append(lines);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * @param operation An operation that has been executed (or is no longer needed).
+     */
+    public synchronized void complete(final Operation operation) {
+        if (getPending().remove(operation.getId()) != null) {
+            if (pending.isEmpty()) {
+                truncate();
+            } else {
+                List<String[]> lines = new ArrayList<String[]>();
+                lines.add(new String[]{DONE, Long.toString(operation.getId())});
+                append(lines);
+                compactIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * @param operation A journalled operation.
+     * @return True if the operation has not been completed (or superseded).
+     */
+    public synchronized boolean isPending(final Operation operation) {
+        return getPending().containsKey(operation.getId());
+    }
+
+    /**
+     * @return All operations planned but not yet done, in the order they were planned.
+     */
+    public synchronized List<Operation> pending() {
+        return new ArrayList<Operation>(getPending().values());
+    }
+
+    /**
+     * @param target Identifies the Jira project and git branch being synchronised.
+     * @return Operations planned for that target but not yet done, in the order they were planned.
+     */
+    public synchronized List<Operation> pending(final String target) {
+        List<Operation> operations = new ArrayList<Operation>();
+        for (Operation operation : getPending().values()) {
+            if (operation.getTarget().equals(target)) {
+                operations.add(operation);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * @return The pending operations, reading the file on first use.
+     */
+    private Map<Long, Operation> getPending() {
+        if (pending == null) {
+            pending = new LinkedHashMap<Long, Operation>();
+            if (file.exists()) {
+                read();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Read the file, keeping operations that were never marked done.
+     */
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineCount++;
+                    try {
+                        read(line.split("\t", -1));
+                    } catch (IllegalArgumentException e) {
+                        // a partial line (crash mid-write) is the only expected damage; skip it
+                    } catch (IndexOutOfBoundsException e) {
+                        // as above
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param fields The fields from a single line.
+     */
+    private void read(final String[] fields) {
+        long id = Long.parseLong(fields[1]);
+        if (PLANNED.equals(fields[0])) {
+            String[] encoded = new String[fields.length - 2];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = decode(fields[i + 2]);
+            }
+            Operation operation = Operation.decode(encoded);
+            operation.setId(id);
+            pending.put(id, operation);
+        } else {
+            pending.remove(id);
+        }
+        lastId = Math.max(lastId, id);
+    }
+
+    /**
+     * @param operation An operation with its id set.
+     * @return The fields of its "P" line.
+     */
+    private static String[] planned(final Operation operation) {
+        String[] fields = operation.encode();
+        String[] line = new String[fields.length + 2];
+        line[0] = PLANNED;
+        line[1] = Long.toString(operation.getId());
+        System.arraycopy(fields, 0, line, 2, fields.length);
+        return line;
+    }
+
+    /**
+     * @param planned Lines to add to the end of the file (synced to disk before returning).
+     */
+    private void append(final List<String[]> planned) {
+        if (planned.isEmpty()) {
+            return;
+        }
+        write(file, planned, true);
+        lineCount += planned.size();
+    }
+
+    /**
+     * Rewrite the file with only the pending operations, if it has grown large and most of it is no longer
+     * needed.  The new file is written alongside and then moved over the old, so a crash leaves one or the
+     * other.
+     */
+    private void compactIfNeeded() {
+        if (lineCount < compactAt || lineCount < 2 * pending.size()) {
+            return;
+        }
+        List<String[]> planned = new ArrayList<String[]>();
+        for (Operation operation : pending.values()) {
+            planned.add(planned(operation));
+        }
+        File compacted = new File(file.getPath() + ".new");
+        write(compacted, planned, false);
+        try {
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lineCount = planned.size();
+    }
+
+    /**
+     * @param destination The file to write.
+     * @param planned The lines to write (synced to disk before returning).
+     * @param append True to add to the end of the file, false to replace it.
+     */
+    private static void write(final File destination, final List<String[]> planned, final boolean append) {
+        try {
+            destination.getParentFile().mkdirs();
+            FileOutputStream stream = new FileOutputStream(destination, append);
+            try {
+                Writer out = new OutputStreamWriter(stream, UTF8);
+                for (String[] line : planned) {
+                    for (int i = 0; i < line.length; i++) {
+                        out.write(i < 2 ? line[i] : encode(line[i]));
+                        out.write(i + 1 < line.length ? '\t' : '\n');
+                    }
+                }
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Discard the file contents (nothing is pending).
+     */
+    private void truncate() {
+        try {
+            file.getParentFile().mkdirs();
+            new FileOutputStream(file, false).close();
+            lineCount = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param value A field value (may be null).
+     * @return The value encoded so that it contains no tabs or newlines.
+     */
+    private static String encode(final String value) {
+        try {
+            return value == null ? NULL : URLEncoder.encode(value, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param value An encoded field value.
+     * @return The original value.
+     */
+    private static String decode(final String value) {
+        try {
+            return NULL.equals(value) ? null : URLDecoder.decode(value, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
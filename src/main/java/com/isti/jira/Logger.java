@@ -1,36 +1,85 @@
 package com.isti.jira;
 
-import hudson.model.AbstractBuild;
-import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import static java.lang.String.format;
 
 
 /**
  * Encapsulate logging.
+ *
+ * A summarising logger (see summarising()) keeps large builds' consoles short: messages are formatted and
+ * written by a background thread, only the first few of each kind of repeated message are shown (the rest
+ * are counted and reported by close()), and debug messages go to a separate gzipped file in the build
+ * directory rather than the console.  Each logger is drained by one thread at a time, and a logger whose
+ * console or file falls behind drops messages (counting them) rather than holding up its build or others.
  */
 public final class Logger {
 
+    /** The number of repeated messages of each kind shown by a summarising logger. */
+    public static final int SAMPLES = 3;
+
+    /** The most messages a summarising logger holds for the console; any more are dropped (and counted). */
+    public static final int BACKLOG = 10000;
+
+    /** The file (in the build directory) with every message, when a summarising logger is debugging. */
+    public static final String DETAIL_LOG = "jira-detail.log.gz";
+
+    /** Writes the output of summarising loggers (a thread per busy logger, so a slow one holds up no other). */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "JiraTestResultReporter log");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /** The project name. */
-    private String project;
+    private final String project;
 
     /** Whether debug messages should be displayed. */
-    private boolean isDebug;
+    private final boolean isDebug;
 
     /** Destination for messages. */
-    private PrintStream out;
+    private final PrintStream out;
+
+    /** The background output (null to print directly). */
+    private final Summary summary;
 
     /**
-     * @param build The Jenkins build.
+     * @param build The Jenkins build (freestyle, matrix or Pipeline).
      * @param listener Destination for logging.
      * @param debugFlag Whether debug messages should be displayed.
      */
-    public Logger(final AbstractBuild build,
-                  final BuildListener listener,
+    public Logger(final Run<?, ?> build,
+                  final TaskListener listener,
                   final boolean debugFlag) {
-        this(build.getProject().getName(), listener.getLogger(), debugFlag);
+        this(build.getParent().getName(), listener.getLogger(), debugFlag);
     }
 
     /**
@@ -41,9 +90,44 @@ public final class Logger {
     public Logger(final String project,
                   final PrintStream out,
                   final boolean isDebug) {
+        this(project, out, isDebug, null);
+    }
+
+    /**
+     * @param project The project name.
+     * @param out Destination for messages.
+     * @param isDebug Whether debug messages should be displayed.
+     * @param summary The background output (null to print directly).
+     */
+    private Logger(final String project,
+                   final PrintStream out,
+                   final boolean isDebug,
+                   final Summary summary) {
         this.project = project;
         this.out = out;
         this.isDebug = isDebug;
+        this.summary = summary;
+    }
+
+    /**
+     * The logger must be closed.
+     *
+     * @param project The project name.
+     * @param out Destination for messages.
+     * @param detail The file for every message, gzipped (null for no debug messages).
+     * @return A logger that writes in the background and summarises repeated messages.
+     */
+    public static Logger summarising(final String project,
+                                     final PrintStream out,
+                                     final File detail) {
+        return new Logger(project, out, detail != null, new Summary(out, detail));
+    }
+
+    /**
+     * @return A logger with the same destination that discards debug messages.
+     */
+    public Logger withoutDebug() {
+        return new Logger(project, out, false, summary);
     }
 
     /**
@@ -52,7 +136,32 @@ public final class Logger {
      * @param args Arguments to substitute in the format.
      */
     public void info(final String template, final Object... args) {
-        println("INFO", template, args);
+        if (summary == null) {
+            println("INFO", template, args);
+        } else {
+            summary.add(new Message("INFO", project, template, args, true));
+        }
+    }
+
+    /**
+     * Log one of many similar info messages (typically one per failure).  A summarising logger shows only
+     * the first few of each kind (the rest are only counted, unless there is a detail file), so pass cheap
+     * arguments (eg the test name, not the result).
+     *
+     * @param kind Identifies the messages that are alike (used in the count of those not shown).
+     * @param template The format.
+     * @param args Arguments to substitute in the format.
+     */
+    public void repeated(final String kind, final String template, final Object... args) {
+        if (summary == null) {
+            println("INFO", template, args);
+        } else {
+            boolean console = summary.count(kind) <= SAMPLES;
+            // checked before the message is made, so nothing is formatted for a line nobody sees
+            if (console || summary.file != null) {
+                summary.add(new Message("INFO", project, template, args, console));
+            }
+        }
     }
 
     /**
@@ -62,7 +171,21 @@ public final class Logger {
      */
     public void debug(final String template, final Object... args) {
         if (isDebug) {
-            println("DEBUG", template, args);
+            if (summary == null) {
+                println("DEBUG", template, args);
+            } else {
+                summary.add(new Message("DEBUG", project, template, args, false));
+            }
+        }
+    }
+
+    /**
+     * Write any messages still waiting, then the counts of those not shown.  Does nothing unless
+     * summarising, and may be called more than once.
+     */
+    public void close() {
+        if (summary != null) {
+            summary.close(project);
         }
     }
 
@@ -78,4 +201,235 @@ public final class Logger {
         out.printf("%s %s: %s%n", level, project, line);
     }
 
+    /**
+     * A message waiting to be formatted and written.
+     */
+    private static final class Message {
+
+        /** Argument types that can be formatted later (immutable, and cheap to keep); callers on hot paths
+         *  should pass only these, since anything else is formatted by the caller. */
+        private static final Set<Class<?>> IMMUTABLE = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+                String.class, Integer.class, Long.class, Short.class, Byte.class, Double.class, Float.class,
+                Boolean.class, Character.class));
+
+        /** The level to print. */
+        private final String level;
+
+        /** The project name. */
+        private final String project;
+
+        /** The format. */
+        private final String template;
+
+        /** Arguments to substitute in the format. */
+        private final Object[] args;
+
+        /** Whether the message is shown on the console (otherwise it only goes to the detail file). */
+        private final boolean console;
+
+        /**
+         * @param level The level to print.
+         * @param project The project name.
+         * @param template The format.
+         * @param args Arguments to substitute in the format.
+         * @param console Whether the message is shown on the console.
+         */
+        private Message(final String level,
+                        final String project,
+                        final String template,
+                        final Object[] args,
+                        final boolean console) {
+            this.level = level;
+            this.project = project;
+            this.console = console;
+            if (isImmutable(args)) {
+                this.template = template;
+                this.args = args;
+            } else {
+                // other arguments may change (or hold on to a lot) before they are written, so format now
+                this.template = "%s";
+                this.args = new Object[]{format(template, args)};
+            }
+        }
+
+        /**
+         * @param args Arguments to substitute in the format.
+         * @return True if every argument is null or an IMMUTABLE type.
+         */
+        private static boolean isImmutable(final Object[] args) {
+            for (Object arg : args) {
+                if (arg != null && !IMMUTABLE.contains(arg.getClass())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return format("%s %s: %s%n", level, project, format(template, args));
+        }
+
+    }
+
+    /**
+     * The output shared by a summarising logger and those derived from it.  Messages are queued by the
+     * caller and formatted and written by one of WRITERS (or by close()), holding the Summary's lock.
+     */
+    private static final class Summary implements Runnable {
+
+        /** The file encoding. */
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        /** Destination for messages shown on the console. */
+        private final PrintStream out;
+
+        /** The file for every message (null for none). */
+        private final File file;
+
+        /** Messages waiting to be written. */
+        private final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(BACKLOG);
+
+        /** True while a run() is scheduled. */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /** True once closed. */
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /** The number of messages dropped because the queue was full. */
+        private final AtomicInteger dropped = new AtomicInteger(0);
+
+        /** The number of repeated messages, by kind. */
+        private final ConcurrentMap<String, AtomicInteger> repeats = new ConcurrentHashMap<String, AtomicInteger>();
+
+        /** Receives every message (null until the first, or if the file failed; guarded by this). */
+        private Writer detail = null;
+
+        /** True once the detail file is complete (guarded by this). */
+        private boolean finished = false;
+
+        /**
+         * @param out Destination for messages shown on the console.
+         * @param file The file for every message (null for none).
+         */
+        private Summary(final PrintStream out, final File file) {
+            this.out = out;
+            this.file = file;
+        }
+
+        /**
+         * @param kind Identifies the messages that are alike.
+         * @return The number of messages of that kind, including this one.
+         */
+        private int count(final String kind) {
+            AtomicInteger count = repeats.get(kind);
+            if (count == null) {
+                repeats.putIfAbsent(kind, new AtomicInteger(0));
+                count = repeats.get(kind);
+            }
+            return count.incrementAndGet();
+        }
+
+        /**
+         * Queue the message, unless nobody would see it.  A full queue means the console or detail file has
+         * fallen behind, and the message is dropped (and counted) rather than holding up the build.
+         *
+         * @param message The message to write.
+         */
+        private void add(final Message message) {
+            if ((file != null || message.console) && !queue.offer(message)) {
+                dropped.incrementAndGet();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                WRITERS.execute(this);
+            }
+        }
+
+        /**
+         * Write the queued messages (on one of WRITERS).
+         */
+        @Override
+        public void run() {
+            // cleared first, so anything queued while we drain schedules another pass
+            scheduled.set(false);
+            drain();
+        }
+
+        /**
+         * Write the queued messages, in order.
+         */
+        private synchronized void drain() {
+            Message message;
+            while ((message = queue.poll()) != null) {
+                String line = message.toString();
+                if (message.console) {
+                    out.print(line);
+                }
+                writeDetail(line);
+            }
+        }
+
+        /**
+         * @param line A formatted message.
+         */
+        private void writeDetail(final String line) {
+            if (file == null || finished) {
+                return;
+            }
+            try {
+                if (detail == null) {
+                    detail = new BufferedWriter(new OutputStreamWriter(
+                            new GZIPOutputStream(new FileOutputStream(file)), UTF8));
+                }
+                detail.write(line);
+            } catch (IOException e) {
+                out.printf("Cannot write %s: %s%n", file, e.getMessage());
+                closeDetail();
+            }
+        }
+
+        /**
+         * Close the detail file, ignoring errors.
+         */
+        private void closeDetail() {
+            try {
+                if (detail != null) {
+                    detail.close();
+                }
+            } catch (IOException e) {
+                out.printf("Cannot close %s: %s%n", file, e.getMessage());
+            } finally {
+                detail = null;
+            }
+        }
+
+        /**
+         * Write what is left and the counts of messages not shown.  This is done by the caller, so no writer
+         * thread waits on a slow console.
+         *
+         * @param project The project name.
+         */
+        private synchronized void close(final String project) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            drain();
+            for (Map.Entry<String, AtomicInteger> entry : repeats.entrySet()) {
+                int hidden = entry.getValue().get() - SAMPLES;
+                if (hidden > 0) {
+                    out.printf("INFO %s: %s: %d more not shown%n", project, entry.getKey(), hidden);
+                }
+            }
+            if (dropped.get() > 0) {
+                out.printf("INFO %s: %d messages dropped (logging fell behind)%n", project, dropped.get());
+            }
+            if (detail != null) {
+                out.printf("INFO %s: Full detail in %s (in the build directory)%n", project, file.getName());
+            }
+            closeDetail();
+            finished = true;
+        }
+
+    }
+
 }
@@ -0,0 +1,183 @@
+package com.isti.jira;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counts and times the plugin's work with Jira, for the life of the JVM: a latency histogram for each kind
+ * of REST call, counters (issues created and closed, retries of operations from the journal) and the
+ * duration of syncs by job.  Calls made from an agent are recorded in the agent's JVM, so only those made
+ * on the controller are seen there.
+ */
+public final class Metrics {
+
+    /** The upper bounds (ms) of the histogram buckets; a final bucket holds anything slower. */
+    static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /** The registry for this JVM. */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /** The REST calls, by operation. */
+    private final ConcurrentMap<String, Histogram> calls = new ConcurrentHashMap<String, Histogram>();
+
+    /** The counters, by name. */
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** The syncs, by job. */
+    private final ConcurrentMap<String, Histogram> syncs = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Use get() (this is for tests).
+     */
+    Metrics() {
+    }
+
+    /**
+     * @return The registry for this JVM.
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param operation The kind of REST call (eg "search").
+     * @param millis How long the call took.
+     * @param failed True if the call failed.
+     */
+    public void recordCall(final String operation, final long millis, final boolean failed) {
+        histogram(calls, operation).record(millis, failed);
+    }
+
+    /**
+     * @param counter The counter to increment.
+     */
+    public void increment(final String counter) {
+        AtomicLong count = counters.get(counter);
+        if (count == null) {
+            counters.putIfAbsent(counter, new AtomicLong(0));
+            count = counters.get(counter);
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @param job The name of the job synced.
+     * @param millis How long the sync took.
+     * @param failed True if the sync failed.
+     */
+    public void recordSync(final String job, final long millis, final boolean failed) {
+        histogram(syncs, job).record(millis, failed);
+    }
+
+    /**
+     * @param histograms Histograms by name.
+     * @param name The name of the histogram wanted.
+     * @return The histogram (created if necessary).
+     */
+    private static Histogram histogram(final ConcurrentMap<String, Histogram> histograms, final String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return A copy of the current values (nested maps, sorted by name, ready for conversion to JSON).
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("calls", snapshot(calls));
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        snapshot.put("counters", values);
+        snapshot.put("syncs", snapshot(syncs));
+        return snapshot;
+    }
+
+    /**
+     * @param histograms Histograms by name.
+     * @return A copy of each, by name.
+     */
+    private static Map<String, Object> snapshot(final Map<String, Histogram> histograms) {
+        Map<String, Object> snapshot = new TreeMap<String, Object>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * A count of events by duration (the buckets are given by BOUNDS).
+     */
+    static final class Histogram {
+
+        /** The number of events in each bucket. */
+        private final long[] buckets = new long[BOUNDS.length + 1];
+
+        /** The number of events that failed. */
+        private long errors = 0;
+
+        /** The total duration (ms). */
+        private long total = 0;
+
+        /** The longest duration (ms). */
+        private long max = 0;
+
+        /**
+         * @param millis The duration of an event.
+         * @param failed True if the event failed.
+         */
+        synchronized void record(final long millis, final boolean failed) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            errors += failed ? 1 : 0;
+            total += millis;
+            max = Math.max(max, millis);
+        }
+
+        /**
+         * @return The number of events.
+         */
+        synchronized long getCount() {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        /**
+         * @return A copy of the values; "le" gives the number of events no slower than each bound (ms),
+         *         cumulatively, as Prometheus does.
+         */
+        synchronized Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+            snapshot.put("count", getCount());
+            snapshot.put("errors", errors);
+            snapshot.put("totalMs", total);
+            snapshot.put("maxMs", max);
+            Map<String, Long> counts = new LinkedHashMap<String, Long>();
+            long sum = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                sum += buckets[i];
+                counts.put(i < BOUNDS.length ? Long.toString(BOUNDS[i]) : "+Inf", sum);
+            }
+            snapshot.put("le", counts);
+            return snapshot;
+        }
+
+    }
+
+}
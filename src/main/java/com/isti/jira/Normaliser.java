@@ -0,0 +1,221 @@
+package com.isti.jira;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+
+/**
+ * Masks the parts of error messages and stack traces that change from run to run (timestamps, object
+ * addresses, ports, temporary paths, the workspace path) so that the same failure always gives the same
+ * hash, and reports from different builds look the same.
+ *
+ * The built in rules are compiled into a single pattern, so the text is scanned once however many rules
+ * there are.  Each type can add its own rule (a regular expression) in the defaults file, using the keys
+ * mask_junit, mask_tap, mask_robot and mask_generic; that is applied afterwards, as a pattern of its own, so
+ * its groups and back-references mean what they say.  An invalid rule is logged and ignored.  Instances are
+ * cached by type and workspace (at most MAX_CACHED).
+ */
+public final class Normaliser {
+
+    /**
+     * The kinds of test result (each can have its own extra rule).
+     */
+    public static enum Type {
+
+        /** JUnit (and xUnit) results. */
+        junit(Defaults.Key.mask_junit),
+        /** TAP results. */
+        tap(Defaults.Key.mask_tap),
+        /** Robot Framework results. */
+        robot(Defaults.Key.mask_robot),
+        /** Any other results. */
+        generic(Defaults.Key.mask_generic);
+
+        /** The key for this type's extra rule in the defaults file. */
+        private final Defaults.Key key;
+
+        /**
+         * @param key The key for this type's extra rule in the defaults file.
+         */
+        Type(final Defaults.Key key) {
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * Rules that apply to all types, as pairs of (regular expression, replacement).  Order matters when
+     * two rules match at the same place (the first wins).
+     */
+    private static final String[][] RULES = {
+        // 2015-06-01T12:34:56.789+01:00 and similar
+        {"\\d{4}-\\d{2}-\\d{2}[T ]\\d{2}:\\d{2}:\\d{2}(?:[.,]\\d+)?(?:Z|[+-]\\d{2}:?\\d{2})?", "<timestamp>"},
+        {"\\b\\d{2}:\\d{2}:\\d{2}(?:[.,]\\d+)?\\b", "<time>"},
+        {"\\b[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\\b", "<uuid>"},
+        {"\\b0x[0-9a-fA-F]{4,}\\b", "0x<address>"},
+        // Object.toString() - com.foo.Bar@1b6d3586
+        {"(?<=[\\w$])@[0-9a-f]{5,8}\\b", "@<address>"},
+        {"(?<=localhost|127\\.0\\.0\\.1|0\\.0\\.0\\.0|\\[::1\\]):\\d{2,5}\\b", ":<port>"},
+        {"(?:/tmp|/var/tmp|/var/folders|/private/var/folders)/[^\\s'\":;,)\\]]+", "<tmp>"},
+        {"[A-Za-z]:\\\\[^\\s'\"]*?\\\\Temp\\\\[^\\s'\":;,)\\]]+", "<tmp>"},
+    };
+
+    /** The replacement for rules from the defaults file. */
+    private static final String MASKED = "<masked>";
+
+    /** The most instances cached (one is needed per type and workspace in use). */
+    static final int MAX_CACHED = 100;
+
+    /** For rules in the defaults file that cannot be used. */
+    private static final Logger LOGGER = Logger.getLogger(Normaliser.class.getName());
+
+    /** Source of the extra rules. */
+    private static final Defaults DEFAULTS = new Defaults();
+
+    /** Instances, by type and workspace. */
+    private static final ConcurrentMap<String, Normaliser> CACHE = new ConcurrentHashMap<String, Normaliser>();
+
+    /** The built in rules (and the workspace), combined. */
+    private final Pattern pattern;
+
+    /** The rule from the defaults file (null if none). */
+    private final Pattern extra;
+
+    /** For each rule, the group in the combined pattern that contains it. */
+    private final int[] groups;
+
+    /** For each rule, the replacement. */
+    private final String[] replacements;
+
+    /**
+     * @param type The kind of test result.
+     * @param workspace The workspace path, removed from the text (may be null).
+     * @param defaults Source of the extra rule.
+     */
+    Normaliser(final Type type, final String workspace, final Defaults defaults) {
+        List<String> expressions = new ArrayList<String>();
+        List<String> replaced = new ArrayList<String>();
+        if (!isBlank(workspace)) {
+            expressions.add(Pattern.quote(workspace));
+            replaced.add("");
+        }
+        for (String[] rule : RULES) {
+            expressions.add(rule[0]);
+            replaced.add(rule[1]);
+        }
+        extra = compile(type, defaults.withDefault(type.key, null, true));
+        StringBuilder combined = new StringBuilder();
+        groups = new int[expressions.size()];
+        int group = 1;
+        for (int i = 0; i < expressions.size(); i++) {
+            combined.append(i == 0 ? "(" : "|(").append(expressions.get(i)).append(")");
+            groups[i] = group;
+            // skip past any groups inside the rule itself
+            group += 1 + Pattern.compile(expressions.get(i)).matcher("").groupCount();
+        }
+        pattern = Pattern.compile(combined.toString());
+        replacements = replaced.toArray(new String[replaced.size()]);
+    }
+
+    /**
+     * @param type The kind of test result.
+     * @param rule The rule from the defaults file (may be blank).
+     * @return The compiled rule (null if blank or invalid).
+     */
+    private static Pattern compile(final Type type, final String rule) {
+        if (isBlank(rule)) {
+            return null;
+        }
+        try {
+            return Pattern.compile(rule);
+        } catch (PatternSyntaxException e) {
+            LOGGER.warning(String.format("Ignoring %s, which is not a valid regular expression: %s",
+                                         type.key, e.getDescription()));
+            return null;
+        }
+    }
+
+    /**
+     * @param type The kind of test result.
+     * @return A normaliser for that type.
+     */
+    public static Normaliser get(final Type type) {
+        return get(type, null);
+    }
+
+    /**
+     * @param type The kind of test result.
+     * @param workspace The workspace path, removed from the text (may be null).
+     * @return A normaliser for that type and workspace.
+     */
+    public static Normaliser get(final Type type, final String workspace) {
+        String key = type.name() + "\n" + workspace;
+        Normaliser normaliser = CACHE.get(key);
+        if (normaliser == null) {
+            if (CACHE.size() >= MAX_CACHED) {
+                // workspaces come and go; those still in use are soon added back
+                CACHE.clear();
+            }
+            CACHE.putIfAbsent(key, new Normaliser(type, workspace, DEFAULTS));
+            normaliser = CACHE.get(key);
+        }
+        return normaliser;
+    }
+
+    /**
+     * @param text The text to normalise (may be null).
+     * @return The text with volatile parts masked (the same instance if nothing matched).
+     */
+    public String normalise(final String text) {
+        if (text == null) {
+            return null;
+        }
+        String masked = mask(text, pattern, null);
+        return extra == null ? masked : mask(masked, extra, MASKED);
+    }
+
+    /**
+     * @param text The text to mask.
+     * @param rules The pattern to look for.
+     * @param replacement The replacement (null to use that of the built in rule that matched).
+     * @return The text with every (non-empty) match replaced (the same instance if nothing matched).
+     */
+    private String mask(final String text, final Pattern rules, final String replacement) {
+        Matcher matcher = rules.matcher(text);
+        if (!matcher.find()) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        int last = 0;
+        do {
+            if (matcher.end() > matcher.start()) {
+                out.append(text, last, matcher.start()).append(replacement == null ? replacement(matcher)
+                                                                                    : replacement);
+                last = matcher.end();
+            }
+        } while (matcher.find());
+        return out.append(text, last, text.length()).toString();
+    }
+
+    /**
+     * @param matcher A successful match of the combined pattern.
+     * @return The replacement for the rule that matched.
+     */
+    private String replacement(final Matcher matcher) {
+        for (int i = 0; i < groups.length; i++) {
+            if (matcher.start(groups[i]) >= 0) {
+                return replacements[i];
+            }
+        }
+        throw new IllegalStateException("No rule matched");
+    }
+
+}
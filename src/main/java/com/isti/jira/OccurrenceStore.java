@@ -0,0 +1,545 @@
+package com.isti.jira;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+
+/**
+ * An append-only record of when each failure (by CATS Hash) occurred, so that its history can be queried
+ * without loading old builds.
+ *
+ * Each build appends a marker record (a zero hash, used to count builds) and one record per failure.
+ * Records are fixed width: hash (20 bytes), job (4, an index into a separate file of job names), build
+ * number (4), build time (8) and commit (20, zero if unknown).  Each job has its own file, so a query only
+ * reads that job's records, through a read-only memory map; a partly written record at the end (after a
+ * crash) is ignored.  A build recorded more than once (eg by two reporters in the same job) is counted once.
+ */
+public final class OccurrenceStore {
+
+    /** The length of a SHA-1 in bytes (the CATS Hash and git commit). */
+    private static final int SHA1 = 20;
+
+    /** The size of each record in bytes. */
+    public static final int RECORD = SHA1 + 4 + 4 + 8 + SHA1;
+
+    /** The largest region mapped at once (a whole number of records). */
+    private static final int MAX_MAP = (Integer.MAX_VALUE / RECORD) * RECORD;
+
+    /** The file encoding (for job names). */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The hash used for build markers. */
+    private static final byte[] MARKER = new byte[SHA1];
+
+    /** The records of all jobs, as written by earlier versions (split into one file per job on first use). */
+    private final File legacy;
+
+    /** Where the store's files are kept. */
+    private final File directory;
+
+    /** The job names, one per line (the index of each is used in the records). */
+    private final File names;
+
+    /** The index of each job name. */
+    private final Map<String, Integer> jobs = new HashMap<String, Integer>();
+
+    /**
+     * @param directory Where the store's files are kept (created if necessary).
+     */
+    public OccurrenceStore(final File directory) {
+        this.directory = directory;
+        legacy = new File(directory, "occurrences.dat");
+        names = new File(directory, "jobs.txt");
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new RuntimeException(format("Cannot create %s", directory));
+        }
+        readJobs();
+        if (legacy.exists()) {
+            split();
+        }
+    }
+
+    /**
+     * @param index The index of a job.
+     * @return The file with the job's records.
+     */
+    private File data(final int index) {
+        return new File(directory, format("occurrences-%d.dat", index));
+    }
+
+    /**
+     * Record a build and its failures.
+     *
+     * @param job The Jenkins job.
+     * @param build The build number.
+     * @param time The build time (ms since the epoch).
+     * @param commit The git commit (may be null).
+     * @param hashes The CATS Hash of each failure in the build.
+     */
+    public synchronized void record(final String job,
+                                    final int build,
+                                    final long time,
+                                    final String commit,
+                                    final Collection<String> hashes) {
+        int index = jobIndex(job);
+        byte[] commitBytes = decode(commit);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD * (hashes.size() + 1));
+        put(buffer, MARKER, index, build, time, commitBytes);
+        for (String hash : hashes) {
+            put(buffer, decode(hash), index, build, time, commitBytes);
+        }
+        buffer.flip();
+        append(data(index), buffer);
+    }
+
+    /**
+     * @param file A file of records.
+     * @param buffer Whole records to add to the end of the file.
+     */
+    private static void append(final File file, final ByteBuffer buffer) {
+        try {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                FileChannel channel = out.getChannel();
+                // drop any partial record left by a crash, so that records stay aligned
+                long size = channel.size();
+                if (size % RECORD != 0) {
+                    channel.truncate(size - size % RECORD);
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param job The Jenkins job.
+     * @return The history of each failure seen in the job, by CATS Hash, most recently seen first.
+     */
+    public Map<String, Stats> query(final String job) {
+        Integer index;
+        synchronized (this) {
+            index = jobs.get(job);
+        }
+        final Map<String, Stats> stats = new HashMap<String, Stats>();
+        if (index == null) {
+            return stats;
+        }
+        final Set<Integer> builds = new HashSet<Integer>();
+        scan(data(index), new Visitor() {
+            @Override
+            public void visit(final byte[] hash, final int jobIndex, final int build, final long time,
+                              final byte[] commit) {
+                if (Arrays.equals(hash, MARKER)) {
+                    builds.add(build);
+                } else {
+                    String key = Hex.encodeHexString(hash);
+                    Stats entry = stats.get(key);
+                    if (entry == null) {
+                        entry = new Stats(key, build, time, builds.size());
+                        stats.put(key, entry);
+                    }
+                    entry.seen(build, time, commit);
+                }
+            }
+        });
+        return sorted(stats.values(), builds.size());
+    }
+
+    /**
+     * Receives the records of a file, in order.
+     */
+    private interface Visitor {
+
+        /**
+         * @param hash The CATS Hash (zero for a build marker; only valid during the call).
+         * @param jobIndex The job index.
+         * @param build The build number.
+         * @param time The build time.
+         * @param commit The git commit (zero if unknown; only valid during the call).
+         */
+        void visit(byte[] hash, int jobIndex, int build, long time, byte[] commit);
+
+    }
+
+    /**
+     * @param file A file of records (may not exist).
+     * @param visitor Receives each whole record.
+     */
+    private static void scan(final File file, final Visitor visitor) {
+        if (!file.exists()) {
+            return;
+        }
+        byte[] hash = new byte[SHA1];
+        byte[] commit = new byte[SHA1];
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size() - channel.size() % RECORD;
+                for (long start = 0; start < size; start += MAX_MAP) {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                                       Math.min(MAX_MAP, size - start));
+                    while (map.hasRemaining()) {
+                        map.get(hash);
+                        int jobIndex = map.getInt();
+                        int build = map.getInt();
+                        long time = map.getLong();
+                        map.get(commit);
+                        visitor.visit(hash, jobIndex, build, time, commit);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Move the records from the single file used by earlier versions to one file per job.  The old file is
+     * removed once all its records are copied (if we fail part way, the copy starts again next time).
+     */
+    private void split() {
+        for (int index : jobs.values()) {
+            if (data(index).exists() && !data(index).delete()) {
+                throw new RuntimeException(format("Cannot delete %s", data(index)));
+            }
+        }
+        final Map<Integer, FileOutputStream> outputs = new HashMap<Integer, FileOutputStream>();
+        try {
+            scan(legacy, new Visitor() {
+                @Override
+                public void visit(final byte[] hash, final int jobIndex, final int build, final long time,
+                                  final byte[] commit) {
+                    ByteBuffer buffer = ByteBuffer.allocate(RECORD);
+                    put(buffer, hash, jobIndex, build, time, commit);
+                    buffer.flip();
+                    try {
+                        if (!outputs.containsKey(jobIndex)) {
+                            outputs.put(jobIndex, new FileOutputStream(data(jobIndex), true));
+                        }
+                        FileChannel channel = outputs.get(jobIndex).getChannel();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } finally {
+            for (FileOutputStream out : outputs.values()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // the copy is repeated next time, since the old file is kept
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        if (!legacy.delete()) {
+            throw new RuntimeException(format("Cannot delete %s", legacy));
+        }
+    }
+
+    /**
+     * @param job The Jenkins job.
+     * @param hash The CATS Hash of a failure.
+     * @return The history of the failure in the job (null if it has not been seen).
+     */
+    public Stats query(final String job, final String hash) {
+        return query(job).get(hash);
+    }
+
+    /**
+     * @param stats The history of each failure.
+     * @param builds The total number of builds recorded for the job.
+     * @return The same, by hash, most recently seen first.
+     */
+    private static Map<String, Stats> sorted(final Collection<Stats> stats, final int builds) {
+        List<Stats> list = new ArrayList<Stats>(stats);
+        Collections.sort(list, new Comparator<Stats>() {
+            @Override
+            public int compare(final Stats a, final Stats b) {
+                return a.lastBuild > b.lastBuild ? -1 : (a.lastBuild == b.lastBuild ? 0 : 1);
+            }
+        });
+        Map<String, Stats> result = new LinkedHashMap<String, Stats>();
+        for (Stats entry : list) {
+            entry.builds = builds - entry.buildsBefore;
+            entry.seenIn = null;
+            result.put(entry.getHash(), entry);
+        }
+        return result;
+    }
+
+    /**
+     * @param buffer The destination.
+     * @param hash The CATS Hash (20 bytes).
+     * @param job The job index.
+     * @param build The build number.
+     * @param time The build time.
+     * @param commit The git commit (20 bytes).
+     */
+    private static void put(final ByteBuffer buffer,
+                            final byte[] hash,
+                            final int job,
+                            final int build,
+                            final long time,
+                            final byte[] commit) {
+        buffer.put(hash).putInt(job).putInt(build).putLong(time).put(commit);
+    }
+
+    /**
+     * @param hex A SHA-1 in hex (may be null).
+     * @return The 20 bytes (zero if the value is missing or not a SHA-1).
+     */
+    private static byte[] decode(final String hex) {
+        if (hex != null && hex.length() == 2 * SHA1) {
+            try {
+                return Hex.decodeHex(hex.toCharArray());
+            } catch (DecoderException e) {
+                // fall through
+            }
+        }
+        return new byte[SHA1];
+    }
+
+    /**
+     * @param job The Jenkins job.
+     * @return The index of the job (added to the file of names if new).
+     */
+    private int jobIndex(final String job) {
+        Integer index = jobs.get(job);
+        if (index == null) {
+            index = jobs.size();
+            try {
+                Writer out = new OutputStreamWriter(new FileOutputStream(names, true), UTF8);
+                try {
+                    out.write(job.replace('\n', ' '));
+                    out.write('\n');
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            jobs.put(job, index);
+        }
+        return index;
+    }
+
+    /**
+     * Read the job names.
+     */
+    private void readJobs() {
+        if (!names.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(names), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!jobs.containsKey(line)) {
+                        jobs.put(line, jobs.size());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * The history of a single failure in a single job.
+     */
+    public static final class Stats {
+
+        /** The CATS Hash of the failure. */
+        private final String hash;
+
+        /** The first build in which the failure occurred. */
+        private final int firstBuild;
+
+        /** The time of the first build. */
+        private final long firstTime;
+
+        /** The number of builds recorded before the first failure. */
+        private final int buildsBefore;
+
+        /** The last build in which the failure occurred. */
+        private int lastBuild;
+
+        /** The time of the last build. */
+        private long lastTime;
+
+        /** The commit of the last build (null if unknown). */
+        private String lastCommit;
+
+        /** The number of builds in which the failure occurred. */
+        private int failures = 0;
+
+        /** The number of builds recorded since (and including) the first failure. */
+        private int builds;
+
+        /** The builds in which the failure occurred (only while the query is running). */
+        private Set<Integer> seenIn = new HashSet<Integer>();
+
+        /**
+         * @param hash The CATS Hash of the failure.
+         * @param firstBuild The first build in which the failure occurred.
+         * @param firstTime The time of the first build.
+         * @param buildsBefore The number of builds recorded before the first failure.
+         */
+        Stats(final String hash, final int firstBuild, final long firstTime, final int buildsBefore) {
+            this.hash = hash;
+            this.firstBuild = firstBuild;
+            this.firstTime = firstTime;
+            // the marker for the first build has already been counted
+            this.buildsBefore = buildsBefore - 1;
+        }
+
+        /**
+         * @param build A build in which the failure occurred.
+         * @param time The time of the build.
+         * @param commit The commit of the build (20 bytes, zero if unknown).
+         */
+        private void seen(final int build, final long time, final byte[] commit) {
+            // a build may be recorded more than once (eg by two reporters in the same job), and not
+            // necessarily in a row, since concurrent builds interleave
+            if (!seenIn.add(build)) {
+                return;
+            }
+            failures++;
+            // concurrent builds of a job may be recorded out of order
+            if (failures == 1 || build > lastBuild) {
+                lastBuild = build;
+                lastTime = time;
+                lastCommit = Arrays.equals(commit, MARKER) ? null : Hex.encodeHexString(commit);
+            }
+        }
+
+        /**
+         * @return The CATS Hash of the failure.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The first build in which the failure occurred.
+         */
+        public int getFirstBuild() {
+            return firstBuild;
+        }
+
+        /**
+         * @return The time of the first build (ms since the epoch).
+         */
+        public long getFirstTime() {
+            return firstTime;
+        }
+
+        /**
+         * @return The time of the first build.
+         */
+        public Date getFirstDate() {
+            return new Date(firstTime);
+        }
+
+        /**
+         * @return The last build in which the failure occurred.
+         */
+        public int getLastBuild() {
+            return lastBuild;
+        }
+
+        /**
+         * @return The time of the last build (ms since the epoch).
+         */
+        public long getLastTime() {
+            return lastTime;
+        }
+
+        /**
+         * @return The time of the last build.
+         */
+        public Date getLastDate() {
+            return new Date(lastTime);
+        }
+
+        /**
+         * @return The commit of the last build (null if unknown).
+         */
+        public String getLastCommit() {
+            return lastCommit;
+        }
+
+        /**
+         * @return The number of builds in which the failure occurred.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return The number of builds since (and including) the first failure.
+         */
+        public int getBuilds() {
+            return builds;
+        }
+
+        /**
+         * @return The fraction of builds since the first failure in which the failure occurred.
+         */
+        public double getRate() {
+            return builds == 0 ? 0 : (double) failures / builds;
+        }
+
+        @Override
+        public String toString() {
+            return format("%s: %d/%d builds (%d-%d)", hash, failures, builds, firstBuild, lastBuild);
+        }
+
+    }
+
+}
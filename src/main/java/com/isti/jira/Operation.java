@@ -0,0 +1,406 @@
+package com.isti.jira;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+
+/**
+ * A single planned write to Jira (creating or closing an issue).  Operations carry everything needed to
+ * execute them later, so that they can be written to the Journal before execution and replayed after a
+ * restart or Jira outage.
+ *
+ * The target identifies the Jira project and git branch being synchronised (and the scope, if the results
+ * were only part of a build); the hash is the CATS Hash of the failure, which is used to deduplicate on
+ * replay.
+ */
+public abstract class Operation {
+
+    /**
+     * Orders operations by priority: new failures first, then closes, then failures that were seen before
+     * (but are not in Jira).  The sort is stable, so order is otherwise unchanged.
+     */
+    public static final Comparator<Operation> BY_PRIORITY = new Comparator<Operation>() {
+        @Override
+        public int compare(final Operation a, final Operation b) {
+            return a.getPriority() < b.getPriority() ? -1 : (a.getPriority() == b.getPriority() ? 0 : 1);
+        }
+    };
+
+    /** Journal sequence number (zero until journalled). */
+    private long id = 0;
+
+    /** The Jenkins job that planned the operation (its full name). */
+    private final String job;
+
+    /** The part of the build (eg a stage) whose results were synced (null for all). */
+    private final String scope;
+
+    /** Identifies the Jira project and git branch being synchronised. */
+    private final String target;
+
+    /** The Jira project. */
+    private final String project;
+
+    /** The Jira issue type. */
+    private final String issueType;
+
+    /** The git repository details. */
+    private final RepoDetails repo;
+
+    /** The CATS Hash of the failure. */
+    private final String hash;
+
+    /** The issue summary (for logging). */
+    private final String summary;
+
+    /**
+     * @param job The Jenkins job that planned the operation.
+     * @param scope The part of the build whose results were synced (null for all).
+     * @param target Identifies the Jira project and git branch being synchronised.
+     * @param project The Jira project.
+     * @param issueType The Jira issue type.
+     * @param repo The git repository details.
+     * @param hash The CATS Hash of the failure.
+     * @param summary The issue summary.
+     */
+    protected Operation(final String job,
+                        final String scope,
+                        final String target,
+                        final String project,
+                        final String issueType,
+                        final RepoDetails repo,
+                        final String hash,
+                        final String summary) {
+        this.job = job;
+        this.scope = scope;
+        this.target = target;
+        this.project = project;
+        this.issueType = issueType;
+        this.repo = repo;
+        this.hash = hash;
+        this.summary = summary;
+    }
+
+    /**
+     * Make the change in Jira.
+     *
+     * @param client The connection to Jira.
+     */
+    public abstract void execute(JiraClient client);
+
+    /**
+     * @return The fields specific to the subclass, in the order expected by decode().
+     */
+    protected abstract List<String> encodeDetails();
+
+    /**
+     * @return Lower values should be executed first when time is limited.
+     */
+    public abstract int getPriority();
+
+    /**
+     * @param open The CATS Hash and key of each unresolved issue in Jira.
+     * @return True if executing the operation would still change Jira.
+     */
+    public abstract boolean isNeeded(Map<String, String> open);
+
+    /**
+     * @param open The CATS Hash and key of each unresolved issue in Jira, updated to reflect this
+     *             operation having been executed.
+     */
+    public abstract void applyTo(Map<String, String> open);
+
+    /**
+     * @return All fields, for writing to the journal.
+     */
+    final String[] encode() {
+        List<String> fields = new ArrayList<String>();
+        fields.add(getClass().getSimpleName());
+        fields.addAll(Arrays.asList(job, target, project, issueType,
+                                    repo.getURL(), repo.getBranch(), repo.getCommit(), hash, summary));
+        fields.addAll(encodeDetails());
+        // last, so that journals written before it was added can still be read
+        fields.add(scope);
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * @param fields Fields written by encode().
+     * @return The operation that was encoded.
+     */
+    static Operation decode(final String[] fields) {
+        String kind = fields[0];
+        RepoDetails repo = new RepoDetails(fields[5], fields[6], fields[7]);
+        if (Create.class.getSimpleName().equals(kind)) {
+            return new Create(fields[1], getScope(fields, 13), fields[2], fields[3], fields[4], repo,
+                              new UniformTestResult(fields[9], fields[10], fields[11],
+                                                    Boolean.parseBoolean(fields[12])));
+        } else if (Close.class.getSimpleName().equals(kind)) {
+            return new Close(fields[1], getScope(fields, 12), fields[2], fields[3], fields[4], repo,
+                             fields[8], fields[9], fields[10], fields[11]);
+        } else {
+            throw new RuntimeException(format("Unknown operation %s", kind));
+        }
+    }
+
+    /**
+     * @param fields Fields written by encode().
+     * @param index The index of the scope.
+     * @return The scope (null if none, or if written before scopes were journalled).
+     */
+    private static String getScope(final String[] fields, final int index) {
+        return fields.length > index ? fields[index] : null;
+    }
+
+    /**
+     * @return Journal sequence number (zero until journalled).
+     */
+    public final long getId() {
+        return id;
+    }
+
+    /**
+     * @param id Journal sequence number.
+     */
+    final void setId(final long id) {
+        this.id = id;
+    }
+
+    /**
+     * @return The Jenkins job that planned the operation.
+     */
+    public final String getJob() {
+        return job;
+    }
+
+    /**
+     * @return The part of the build (eg a stage) whose results were synced (null for all).
+     */
+    public final String getScope() {
+        return scope;
+    }
+
+    /**
+     * @return Identifies the Jira project and git branch being synchronised.
+     */
+    public final String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The Jira project.
+     */
+    public final String getProject() {
+        return project;
+    }
+
+    /**
+     * @return The Jira issue type.
+     */
+    public final String getIssueType() {
+        return issueType;
+    }
+
+    /**
+     * @return The git repository details.
+     */
+    public final RepoDetails getRepo() {
+        return repo;
+    }
+
+    /**
+     * @return The CATS Hash of the failure.
+     */
+    public final String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The issue summary.
+     */
+    public final String getSummary() {
+        return summary;
+    }
+
+
+    /**
+     * Create a new issue for a failure.
+     */
+    public static final class Create extends Operation {
+
+        /** The failure to report. */
+        private final UniformTestResult result;
+
+        /**
+         * @param job The Jenkins job that planned the operation.
+         * @param scope The part of the build whose results were synced (null for all).
+         * @param target Identifies the Jira project and git branch being synchronised.
+         * @param project The Jira project.
+         * @param issueType The Jira issue type.
+         * @param repo The git repository details.
+         * @param result The failure to report.
+         */
+        public Create(final String job,
+                      final String scope,
+                      final String target,
+                      final String project,
+                      final String issueType,
+                      final RepoDetails repo,
+                      final UniformTestResult result) {
+            super(job, scope, target, project, issueType, repo, result.getHash(repo), result.getSummary());
+            this.result = result;
+        }
+
+        /**
+         * @return The failure to report.
+         */
+        public UniformTestResult getResult() {
+            return result;
+        }
+
+        @Override
+        public void execute(final JiraClient client) {
+            client.createIssue(getProject(), getIssueType(), getRepo(), result);
+        }
+
+        @Override
+        public int getPriority() {
+            return result.isNew() ? 0 : 2;
+        }
+
+        @Override
+        public boolean isNeeded(final Map<String, String> open) {
+            return !open.containsKey(getHash());
+        }
+
+        @Override
+        public void applyTo(final Map<String, String> open) {
+            // the key isn't needed, only the hash
+            open.put(getHash(), null);
+        }
+
+        @Override
+        public String toString() {
+            return format("Creating: '%s'", getSummary());
+        }
+
+        @Override
+        protected List<String> encodeDetails() {
+            return Arrays.asList(result.getDescription(), result.getError(), Boolean.toString(result.isNew()));
+        }
+
+    }
+
+
+    /**
+     * Close (transition) an existing issue whose failure has gone away.
+     */
+    public static final class Close extends Operation {
+
+        /** The key of the issue to close. */
+        private final String issueKey;
+
+        /** The transition that closes the issue. */
+        private final String transition;
+
+        /** The issue, if known (not journalled - replays fetch it again). */
+        private transient Issue issue;
+
+        /**
+         * @param job The Jenkins job that planned the operation.
+         * @param scope The part of the build whose results were synced (null for all).
+         * @param target Identifies the Jira project and git branch being synchronised.
+         * @param project The Jira project.
+         * @param issueType The Jira issue type.
+         * @param repo The git repository details.
+         * @param hash The CATS Hash of the failure.
+         * @param summary The issue summary.
+         * @param issueKey The key of the issue to close.
+         * @param transition The transition that closes the issue.
+         */
+        Close(final String job,
+              final String scope,
+              final String target,
+              final String project,
+              final String issueType,
+              final RepoDetails repo,
+              final String hash,
+              final String summary,
+              final String issueKey,
+              final String transition) {
+            super(job, scope, target, project, issueType, repo, hash, summary);
+            this.issueKey = issueKey;
+            this.transition = transition;
+        }
+
+        /**
+         * @param job The Jenkins job that planned the operation.
+         * @param scope The part of the build whose results were synced (null for all).
+         * @param target Identifies the Jira project and git branch being synchronised.
+         * @param project The Jira project.
+         * @param issueType The Jira issue type.
+         * @param repo The git repository details.
+         * @param hash The CATS Hash of the failure.
+         * @param issue The issue to close.
+         * @param transition The transition that closes the issue.
+         */
+        public Close(final String job,
+                     final String scope,
+                     final String target,
+                     final String project,
+                     final String issueType,
+                     final RepoDetails repo,
+                     final String hash,
+                     final Issue issue,
+                     final String transition) {
+            this(job, scope, target, project, issueType, repo, hash, issue.getSummary(), issue.getKey(), transition);
+            this.issue = issue;
+        }
+
+        /**
+         * @return The key of the issue to close.
+         */
+        public String getIssueKey() {
+            return issueKey;
+        }
+
+        @Override
+        public void execute(final JiraClient client) {
+            client.closeIssue(issue == null ? client.getIssue(issueKey) : issue, transition);
+        }
+
+        @Override
+        public int getPriority() {
+            return 1;
+        }
+
+        @Override
+        public boolean isNeeded(final Map<String, String> open) {
+            return issueKey.equals(open.get(getHash()));
+        }
+
+        @Override
+        public void applyTo(final Map<String, String> open) {
+            open.remove(getHash());
+        }
+
+        @Override
+        public String toString() {
+            return format("Closing: '%s'", getSummary());
+        }
+
+        @Override
+        protected List<String> encodeDetails() {
+            return Arrays.asList(issueKey, transition);
+        }
+
+    }
+
+}
@@ -1,7 +1,8 @@
 package com.isti.jira;
 
-import hudson.model.AbstractBuild;
+import hudson.model.Run;
 
+import java.io.Serializable;
 import java.util.Map;
 
 import static java.lang.String.format;
@@ -10,7 +11,9 @@ import static java.lang.String.format;
 /**
  * Encapsulate what we know about the git repository.
  */
-public final class RepoDetails {
+public final class RepoDetails implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /** The git repository URL. */
     private String URL;
@@ -33,9 +36,9 @@ public final class RepoDetails {
     }
 
     /**
-     * @param build The current build.
+     * @param build The current build (the git details are taken from its environment).
      */
-    public RepoDetails(final AbstractBuild build) {
+    public RepoDetails(final Run<?, ?> build) {
         this(vars(build).get("GIT_URL"),
              vars(build).get("GIT_BRANCH"),
              vars(build).get("GIT_COMMIT"));
@@ -45,7 +48,7 @@ public final class RepoDetails {
      * @param build The current build.
      * @return A map of environment variables.
      */
-    private static Map<String, String> vars(final AbstractBuild build) {
+    private static Map<String, String> vars(final Run<?, ?> build) {
 //        return build.getBuildVariables();
         try {
             return build.getEnvironment(null);
@@ -0,0 +1,120 @@
+package com.isti.jira;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.String.format;
+
+
+/**
+ * Serialises the syncs for each target (Jira project, issue type, repository and branch), so that two
+ * builds can't both see that a failure has no issue and both create one.
+ *
+ * Within the JVM, targets are hashed onto a fixed set of lock stripes, so syncs for different targets
+ * (almost always) still run in parallel.  If a directory is given (eg on a filesystem shared by several
+ * controllers that report to the same Jira), a file lock on a file named for the target is held as well.
+ *
+ * A sync that had to wait should assume that Jira changed while it waited, and search again.
+ */
+public final class TargetLock {
+
+    /** The number of lock stripes. */
+    static final int STRIPES = 256;
+
+    /** The lock stripes. */
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    /** The stripe held. */
+    private final ReentrantLock lock;
+
+    /** The lock file (null if none). */
+    private final RandomAccessFile file;
+
+    /** True if another sync held the lock when we asked for it. */
+    private final boolean contended;
+
+    /**
+     * @param lock The stripe held.
+     * @param file The lock file, locked (null if none).
+     * @param contended True if another sync held the lock when we asked for it.
+     */
+    private TargetLock(final ReentrantLock lock, final RandomAccessFile file, final boolean contended) {
+        this.lock = lock;
+        this.file = file;
+        this.contended = contended;
+    }
+
+    /**
+     * Wait for, and take, the lock for a target.
+     *
+     * @param target Identifies the Jira project and git branch.
+     * @param directory A directory for lock files shared with other controllers (null for none).
+     * @return The lock, held until release() is called.
+     */
+    public static TargetLock acquire(final String target, final File directory) {
+        ReentrantLock lock = LOCKS[(target.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        boolean contended = !lock.tryLock();
+        if (contended) {
+            lock.lock();
+        }
+        if (directory == null) {
+            return new TargetLock(lock, null, contended);
+        }
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException(format("Cannot create %s", directory));
+            }
+            RandomAccessFile file = new RandomAccessFile(new File(directory, DigestUtils.shaHex(target) + ".lock"),
+                                                         "rw");
+            try {
+                // the stripe is held, so no other thread here can hold this file's lock
+                FileLock fileLock = file.getChannel().tryLock();
+                if (fileLock == null) {
+                    contended = true;
+                    file.getChannel().lock();
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            return new TargetLock(lock, file, contended);
+        } catch (IOException e) {
+            lock.unlock();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return True if another sync (here or, with a lock directory, elsewhere) held the lock when we asked.
+     */
+    public boolean isContended() {
+        return contended;
+    }
+
+    /**
+     * Release the lock (closing the lock file releases the file lock).
+     */
+    public void release() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
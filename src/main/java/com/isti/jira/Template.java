@@ -0,0 +1,162 @@
+package com.isti.jira;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A summary or description layout, with placeholders for the parts of a failure: ${test}, ${class},
+ * ${error}, ${trace} and ${title}.  For example, in Jira wiki markup:
+ *
+ *   *${test}* failed in {{${class}}}\n{code}${trace}{code}
+ *
+ * Templates are parsed once (and cached), and rendered into a per-thread buffer, so creating many issues
+ * doesn't repeatedly parse formats or grow new buffers.  Unknown placeholders are copied unchanged and
+ * missing values are rendered as empty strings.
+ */
+public final class Template {
+
+    /**
+     * The parts of a failure that can appear in a template.
+     */
+    public static enum Field {
+
+        /** The name of the test. */
+        TEST("test"),
+        /** The class containing the test. */
+        CLASS("class"),
+        /** The error message. */
+        ERROR("error"),
+        /** The stack trace. */
+        TRACE("trace"),
+        /** The test title (TAP and generic results). */
+        TITLE("title");
+
+        /** The placeholder for this field in a template. */
+        private final String placeholder;
+
+        /**
+         * @param name The name used in templates.
+         */
+        Field(final String name) {
+            placeholder = "${" + name + "}";
+        }
+
+        /**
+         * @return The placeholder for this field in a template.
+         */
+        String getPlaceholder() {
+            return placeholder;
+        }
+
+    }
+
+    /**
+     * Supplies the values for a template.
+     */
+    public interface Source {
+
+        /**
+         * @param field A part of the failure.
+         * @return The value (may be null).
+         */
+        String get(Field field);
+
+    }
+
+    /** Buffers larger than this are not kept for reuse. */
+    private static final int MAX_BUFFER = 1 << 16;
+
+    /** Parsed templates, by text. */
+    private static final ConcurrentMap<String, Template> CACHE = new ConcurrentHashMap<String, Template>();
+
+    /** A buffer for each thread. */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    /** The literal text between fields (one more than the number of fields). */
+    private final String[] literals;
+
+    /** The fields, in order. */
+    private final Field[] fields;
+
+    /**
+     * @param text The template.
+     */
+    private Template(final String text) {
+        List<String> literalList = new ArrayList<String>();
+        List<Field> fieldList = new ArrayList<Field>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            Field field = text.startsWith("${", i) ? match(text, i) : null;
+            if (field == null) {
+                literal.append(text.charAt(i++));
+            } else {
+                literalList.add(literal.toString());
+                literal.setLength(0);
+                fieldList.add(field);
+                i += field.getPlaceholder().length();
+            }
+        }
+        literalList.add(literal.toString());
+        literals = literalList.toArray(new String[literalList.size()]);
+        fields = fieldList.toArray(new Field[fieldList.size()]);
+    }
+
+    /**
+     * @param text The template.
+     * @param from The start of a possible placeholder.
+     * @return The field whose placeholder starts there (null if none).
+     */
+    private static Field match(final String text, final int from) {
+        for (Field field : Field.values()) {
+            if (text.startsWith(field.getPlaceholder(), from)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param text The template.
+     * @return The parsed template.
+     */
+    public static Template compile(final String text) {
+        Template template = CACHE.get(text);
+        if (template == null) {
+            CACHE.putIfAbsent(text, new Template(text));
+            template = CACHE.get(text);
+        }
+        return template;
+    }
+
+    /**
+     * @param source Supplies the values for the fields.
+     * @return The rendered text.
+     */
+    public String render(final Source source) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        buffer.append(literals[0]);
+        for (int i = 0; i < fields.length; i++) {
+            String value = source.get(fields[i]);
+            if (value != null) {
+                buffer.append(value);
+            }
+            buffer.append(literals[i + 1]);
+        }
+        String result = buffer.toString();
+        if (buffer.capacity() > MAX_BUFFER) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+}
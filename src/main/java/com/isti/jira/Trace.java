@@ -0,0 +1,371 @@
+package com.isti.jira;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+
+/**
+ * A lightweight tree of timed spans for a single report (unpacking, each sync, each REST call), so that a
+ * slow build can be diagnosed afterwards without debug.
+ *
+ * The span a thread is working in is kept in a thread local, so code deep in a sync (eg JiraClient) can
+ * add a child with start() without being passed anything; work handed to another thread must resume() the
+ * span there.  Outside a trace, start() returns a span that records nothing.  At most MAX_SPANS are kept
+ * (the rest are only counted), and encode() gives one line per span, for storing with the build.  A trace
+ * made elsewhere (eg by a sync on an agent) can be added to the current span with graft().
+ */
+public final class Trace {
+
+    /** The most spans recorded (so a build with thousands of failures stays small). */
+    public static final int MAX_SPANS = 500;
+
+    /** The span each thread is working in (null if none). */
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+    /** The span used outside a trace (and once the trace is full). */
+    private static final Span NONE = new Span(null, "", -1, -1, 0);
+
+    /** The time (ms since the epoch) the trace started. */
+    private final long origin = System.currentTimeMillis();
+
+    /** The spans, in the order they started (the first is the root). */
+    private final List<Span> spans = new ArrayList<Span>();
+
+    /** The number of spans not recorded because the trace was full. */
+    private int omitted = 0;
+
+    /**
+     * A timed piece of work.
+     */
+    public static final class Span {
+
+        /** The trace (null for NONE). */
+        private final Trace trace;
+
+        /** What was done. */
+        private final String name;
+
+        /** The index of this span in the trace. */
+        private final int index;
+
+        /** The index of the parent (-1 for the root). */
+        private final int parent;
+
+        /** The start, relative to the trace (ms). */
+        private final long start;
+
+        /** The duration (ms; -1 until ended). */
+        private long duration = -1;
+
+        /** Details (eg sizes and counts). */
+        private final StringBuilder notes = new StringBuilder();
+
+        /** The span the thread was in before this started (restored by end()). */
+        private Span previous = null;
+
+        /**
+         * @param trace The trace (null for NONE).
+         * @param name What was done.
+         * @param index The index of this span in the trace.
+         * @param parent The index of the parent (-1 for the root).
+         * @param start The start, relative to the trace (ms).
+         */
+        private Span(final Trace trace, final String name, final int index, final int parent, final long start) {
+            this.trace = trace;
+            this.name = name;
+            this.index = index;
+            this.parent = parent;
+            this.start = start;
+        }
+
+        /**
+         * @param key What the value is.
+         * @param value A detail of the work (eg a size).
+         * @return This span.
+         */
+        public Span note(final String key, final Object value) {
+            if (trace != null) {
+                synchronized (trace) {
+                    notes.append(notes.length() == 0 ? "" : ", ").append(key).append('=').append(value);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Record the duration and (except for the root) return the thread to the span it was in before
+         * this started.
+         */
+        public void end() {
+            if (trace != null) {
+                synchronized (trace) {
+                    duration = System.currentTimeMillis() - trace.origin - start;
+                }
+                if (index > 0) {
+                    CURRENT.set(previous);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Start the root span.  This is not the span of any thread until resumed, so work on the trace can be
+     * spread over several calls (eg from a matrix build) without leaving it attached to a thread.
+     *
+     * @param name What is traced.
+     * @return The root span (end it before encoding).
+     */
+    public synchronized Span root(final String name) {
+        Span root = new Span(this, name, spans.size(), -1, System.currentTimeMillis() - origin);
+        spans.add(root);
+        return root;
+    }
+
+    /**
+     * Start a child of the current thread's span, which becomes the thread's span until end().
+     *
+     * @param name What is done.
+     * @return The new span (one that records nothing if the thread is not tracing).
+     */
+    public static Span start(final String name) {
+        Span parent = CURRENT.get();
+        if (parent == null || parent.trace == null) {
+            return NONE;
+        }
+        Span span = parent.trace.child(parent, name);
+        if (span != NONE) {
+            span.previous = parent;
+            CURRENT.set(span);
+        }
+        return span;
+    }
+
+    /**
+     * @param parent The parent span.
+     * @param name What is done.
+     * @return A new span (NONE if the trace is full).
+     */
+    private synchronized Span child(final Span parent, final String name) {
+        if (spans.size() >= MAX_SPANS) {
+            omitted++;
+            return NONE;
+        }
+        Span span = new Span(this, name, spans.size(), parent.index, System.currentTimeMillis() - origin);
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * @return The current thread's span (null if none), to resume() in another thread.
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @param span The span the current thread now works in (null for none).
+     * @return The span it was in before (to resume() when done).
+     */
+    public static Span resume(final Span span) {
+        Span previous = CURRENT.get();
+        CURRENT.set(span);
+        return previous;
+    }
+
+    /**
+     * Add the spans of another trace (eg one made on an agent, whose clock may differ) as children of the
+     * current thread's span, ending now.  Does nothing outside a trace.
+     *
+     * @param encoded The output of encode() for the other trace.
+     */
+    public static void graft(final String encoded) {
+        Span parent = CURRENT.get();
+        if (parent != null && parent.trace != null) {
+            parent.trace.add(parent, encoded);
+        }
+    }
+
+    /**
+     * @param parent The span that receives the other trace's roots.
+     * @param encoded The output of encode() for the other trace.
+     */
+    private synchronized void add(final Span parent, final String encoded) {
+        List<String[]> rows = rows(encoded);
+        long length = 0;
+        for (String[] row : rows) {
+            length = Math.max(length, Long.parseLong(row[1]) + Math.max(Long.parseLong(row[2]), 0));
+        }
+        long offset = Math.max(parent.start, System.currentTimeMillis() - origin - length);
+        int[] indices = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            int other = Integer.parseInt(row[0]);
+            indices[i] = -1;
+            if (spans.size() >= MAX_SPANS) {
+                omitted++;
+            } else if (other < 0 || indices[other] >= 0) {
+                Span span = new Span(this, row[3], spans.size(), other < 0 ? parent.index : indices[other],
+                                     offset + Long.parseLong(row[1]));
+                span.duration = Long.parseLong(row[2]);
+                span.notes.append(row[4]);
+                indices[i] = span.index;
+                spans.add(span);
+            }
+        }
+        omitted += getOmitted(encoded);
+    }
+
+    /**
+     * @return One line per span (parent, start, duration, name and notes, separated by tabs), and a last
+     *         line with the number omitted.
+     */
+    public synchronized String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for (Span span : spans) {
+            encoded.append(format("%d\t%d\t%d\t%s\t%s\n", span.parent, span.start, span.duration,
+                                  clean(span.name), clean(span.notes.toString())));
+        }
+        return encoded.append(omitted).toString();
+    }
+
+    /**
+     * @param text A name or notes.
+     * @return The text without tabs or newlines.
+     */
+    private static String clean(final String text) {
+        return text.replaceAll("[\t\n\r]", " ");
+    }
+
+    /**
+     * A span read back from encode(), for display.
+     */
+    public static final class Record {
+
+        /** What was done. */
+        private final String name;
+
+        /** Details (eg sizes and counts). */
+        private final String notes;
+
+        /** The depth in the tree (zero for the root). */
+        private final int depth;
+
+        /** The start, relative to the trace (ms). */
+        private final long start;
+
+        /** The duration (ms; -1 if it never ended). */
+        private final long duration;
+
+        /**
+         * @param name What was done.
+         * @param notes Details (eg sizes and counts).
+         * @param depth The depth in the tree.
+         * @param start The start, relative to the trace (ms).
+         * @param duration The duration (ms; -1 if it never ended).
+         */
+        private Record(final String name, final String notes, final int depth, final long start,
+                       final long duration) {
+            this.name = name;
+            this.notes = notes;
+            this.depth = depth;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        /**
+         * @return What was done.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Details (eg sizes and counts).
+         */
+        public String getNotes() {
+            return notes;
+        }
+
+        /**
+         * @return The depth in the tree (zero for the root).
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return The start, relative to the trace (ms).
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return The duration (ms; -1 if it never ended).
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+    }
+
+    /**
+     * @param encoded The output of encode().
+     * @return The spans, each followed by its children (depth first, in the order they started).
+     */
+    public static List<Record> decode(final String encoded) {
+        List<String[]> rows = rows(encoded);
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (Integer.parseInt(rows.get(i)[0]) < 0) {
+                addTree(rows, i, 0, records);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @param encoded The output of encode().
+     * @return The fields of each span.
+     */
+    private static List<String[]> rows(final String encoded) {
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String line : encoded.split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 5) {
+                rows.add(fields);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param rows The encoded spans.
+     * @param index The span to add.
+     * @param depth Its depth.
+     * @param records Receives the span, then its children.
+     */
+    private static void addTree(final List<String[]> rows, final int index, final int depth,
+                                final List<Record> records) {
+        String[] row = rows.get(index);
+        records.add(new Record(row[3], row[4], depth, Long.parseLong(row[1]), Long.parseLong(row[2])));
+        for (int i = index + 1; i < rows.size(); i++) {
+            if (Integer.parseInt(rows.get(i)[0]) == index) {
+                addTree(rows, i, depth + 1, records);
+            }
+        }
+    }
+
+    /**
+     * @param encoded The output of encode().
+     * @return The number of spans not recorded because the trace was full.
+     */
+    public static int getOmitted(final String encoded) {
+        String last = encoded.substring(encoded.lastIndexOf('\n') + 1);
+        return last.matches("\\d+") ? Integer.parseInt(last) : 0;
+    }
+
+}
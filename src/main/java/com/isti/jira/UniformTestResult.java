@@ -14,8 +14,15 @@ import org.tap4j.plugin.model.TapTestResultResult;
 
 import javax.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static com.google.common.collect.Iterables.transform;
 import static java.lang.String.format;
@@ -36,13 +43,51 @@ import static org.apache.commons.lang.StringUtils.isBlank;
  * be in the summary or description.
  *
  * In addition, we need the know whether the failure is new (if available).
+ *
+ * Errors are passed through a Normaliser before hashing, so that timestamps, addresses and the like don't
+ * give a new hash on each build.
+ *
+ * Only the error (for the hash) and the new flag are extracted when an instance is created.  The summary
+ * and description are rendered on first use, since most failures already have an issue in Jira and never
+ * need them.  The class name, test name and error type are read directly from the test plugin's result
+ * (for the FailureFilter), so checking them is also cheap.
+ *
+ * The summary and description layouts are Templates, which can be replaced in the defaults file (keys
+ * summary_template and description_template).
  */
 public final class UniformTestResult {
 
-    /** A summary (used for JIRA issue title). */
+    /** unpack() converts at least this many failures in parallel. */
+    public static final int PARALLEL_THRESHOLD = 1000;
+
+    /** The JUnit summary layout (unless replaced in the defaults file). */
+    private static final String CASE_SUMMARY = "Test '${test}' failed in ${class}";
+
+    /** The JUnit description layout (unless replaced in the defaults file). */
+    private static final String CASE_DESCRIPTION = "${error}\nClass: ${class}\nTrace: ${trace}";
+
+    /** The TAP and generic summary layout (unless replaced in the defaults file). */
+    private static final String TITLE_SUMMARY = "Test '${test}' failed";
+
+    /** The TAP and generic description layout (unless replaced in the defaults file). */
+    private static final String TITLE_DESCRIPTION = "${title}: ${error}";
+
+    /** The Robot summary layout (unless replaced in the defaults file). */
+    private static final String ROBOT_SUMMARY = "Test '${test}' failed";
+
+    /** The Robot description layout (unless replaced in the defaults file). */
+    private static final String ROBOT_DESCRIPTION = "${test}: ${error}";
+
+    /** Source of the templates. */
+    private static final Defaults DEFAULTS = new Defaults();
+
+    /** Shared by all builds, so that parallel unpacking is limited to one thread per core. */
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /** A summary (used for JIRA issue title; null until rendered). */
     private String summary;
 
-    /** A description (used for JIRA body). */
+    /** A description (used for JIRA body; null until rendered). */
     private String description;
 
     /** The error message (hashed with the repo details). */
@@ -53,6 +98,15 @@ public final class UniformTestResult {
      */
     private boolean isNew = true;
 
+    /** Renders the summary and description on demand (null for literal values). */
+    private Renderer renderer;
+
+    /** The repo details last used for the hash. */
+    private RepoDetails hashedRepo;
+
+    /** The hash for hashedRepo. */
+    private String hash;
+
 
     /**
      * Assumes test is new and copies summary to error.
@@ -91,15 +145,25 @@ public final class UniformTestResult {
         this.isNew = isNew;
     }
 
+    /**
+     * @param error The error message (independent of details that might change).
+     * @param isNew Is the test a new failure?
+     * @param renderer Renders the summary and description on demand.
+     */
+    private UniformTestResult(final String error, final boolean isNew, final Renderer renderer) {
+        this.error = error;
+        this.isNew = isNew;
+        this.renderer = renderer;
+    }
+
     /**
      * @param result The TAP result to extract data from.
      * @param logger To record class data for debugging.
      */
     public UniformTestResult(final TapTestResultResult result, final Logger logger) {
-        this(format("Test '%s' failed", result.getName()),
-             format("%s: %s", result.getTitle(), result.getErrorDetails()),
-             result.getErrorDetails());
-        logger.debug("TAP: %s", this);
+        this(Normaliser.get(Normaliser.Type.tap).normalise(result.getErrorDetails()), true,
+             new TitleRenderer(result));
+        logger.debug("TAP: %s (class %s)", getTestName(), getClassName());
     }
 
     /**
@@ -108,14 +172,10 @@ public final class UniformTestResult {
      * @param logger To record class data for debugging.
      */
     public UniformTestResult(final CaseResult result, final String workspace, final Logger logger) {
-        this(format("Test '%s' failed in %s", result.getName(), result.getClassName()),
-             format("%s\nClass: %s\nTrace: %s",
-                    result.getErrorDetails(),
-                    result.getClassName(),
-                    result.getErrorStackTrace().replace(workspace, "")),
-             result.getErrorDetails(),
-             1 == result.getAge());
-        logger.debug("Case: %s", this);
+        this(Normaliser.get(Normaliser.Type.junit, workspace).normalise(result.getErrorDetails()),
+             1 == result.getAge(),
+             new CaseRenderer(result, Normaliser.get(Normaliser.Type.junit, workspace)));
+        logger.debug("Case: %s (class %s)", getTestName(), getClassName());
     }
 
     /**
@@ -123,10 +183,9 @@ public final class UniformTestResult {
      * @param logger To record class data for debugging.
      */
     public UniformTestResult(final TestResult result, final Logger logger) {
-        this(format("Test '%s' failed", result.getName()),
-             format("%s: %s", result.getTitle(), result.getErrorDetails()),
-             result.getErrorDetails());
-        logger.debug("Generic: %s", this);
+        this(Normaliser.get(Normaliser.Type.generic).normalise(result.getErrorDetails()), true,
+             new TitleRenderer(result));
+        logger.debug("Generic: %s (class %s)", getTestName(), getClassName());
     }
 
     /**
@@ -134,17 +193,29 @@ public final class UniformTestResult {
      * @param logger To record class data for debugging.
      */
     public UniformTestResult(final RobotCaseResult result, final Logger logger) {
-        this(format("Test '%s' failed", result.getDisplayName()),
-             format("%s: %s", result.getDisplayName(), result.getErrorMsg()),
-             result.getDisplayName());
-        logger.debug("Robot: %s", this);
+        this(Normaliser.get(Normaliser.Type.robot).normalise(result.getDisplayName()), true,
+             new RobotRenderer(result));
+        logger.debug("Robot: %s (class %s)", getTestName(), getClassName());
+    }
+
+    /**
+     * @param repo The git repo details.
+     * @return A hash based on the error details and repo.
+     */
+    public synchronized String getHash(final RepoDetails repo) {
+        // the same repo is used throughout a sync, so caching the last value is enough
+        if (repo != hashedRepo) {
+            hash = hash(repo);
+            hashedRepo = repo;
+        }
+        return hash;
     }
 
     /**
      * @param repo The git repo details.
      * @return A hash based on the error details and repo.
      */
-    public String getHash(final RepoDetails repo) {
+    private String hash(final RepoDetails repo) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             md.update(error.getBytes());
@@ -166,6 +237,9 @@ public final class UniformTestResult {
      * @return A summary of the failing test.
      */
     public String getSummary() {
+        if (summary == null && renderer != null) {
+            summary = renderer.summary();
+        }
         return summary;
     }
 
@@ -173,9 +247,69 @@ public final class UniformTestResult {
      * @return A description of the failing test.
      */
     public String getDescription() {
+        if (description == null && renderer != null) {
+            description = renderer.description();
+        }
         return description;
     }
 
+    /**
+     * Write everything known about the failure (the description, but with the full trace and any test
+     * output), piece by piece, for an attachment.
+     *
+     * @param out The destination.
+     * @throws IOException On error writing.
+     */
+    public void writeDetails(final Writer out) throws IOException {
+        if (renderer == null) {
+            write(out, description);
+        } else {
+            renderer.writeDetails(out);
+        }
+    }
+
+    /**
+     * Check for text in the description, without rendering it if possible.
+     *
+     * @param text The text to look for.
+     * @return True if the description would contain the text.
+     */
+    public boolean mentions(final String text) {
+        if (description == null && renderer != null) {
+            return renderer.mentions(text);
+        } else {
+            return description != null && description.contains(text);
+        }
+    }
+
+    /**
+     * @return The error message (independent of details that might change).
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return The name of the class containing the test (null if unknown).
+     */
+    public String getClassName() {
+        return renderer == null ? null : renderer.className();
+    }
+
+    /**
+     * @return The name of the test.
+     */
+    public String getTestName() {
+        return renderer == null ? summary : renderer.testName();
+    }
+
+    /**
+     * @return The type of the error (the exception class, if any; otherwise null).
+     */
+    public String getErrorType() {
+        return renderer == null ? errorType(error) : renderer.errorType();
+    }
+
     /**
      * @return Whether the test is a new failure.
      */
@@ -185,7 +319,7 @@ public final class UniformTestResult {
 
     @Override
     public String toString() {
-        return summary;
+        return getSummary();
     }
 
     /**
@@ -196,26 +330,470 @@ public final class UniformTestResult {
     public static Iterable<UniformTestResult> unpack(
             final AbstractBuild build,
             final Logger logger) {
-        Object results = build.getAction(AbstractTestResultAction.class).getResult();
+        return transform(failures(build.getAction(AbstractTestResultAction.class).getResult(), logger),
+                         new Factory(build.getWorkspace().getRemote(), logger));
+    }
+
+    /**
+     * @param build The current build.
+     * @param repo The git repo details (for the hashes).
+     * @param logger To record class data for debugging.
+     * @return The failed tests found.
+     */
+    public static Iterable<UniformTestResult> unpack(
+            final AbstractBuild build,
+            final RepoDetails repo,
+            final Logger logger) {
+        return unpack(build.getAction(AbstractTestResultAction.class).getResult(),
+                      build.getWorkspace().getRemote(), repo, logger);
+    }
+
+    /**
+     * Convert the failed tests.  Usually they are converted one at a time, as the caller iterates, so
+     * they need not all be held at once.  If there are many they are converted (and hashed) in parallel
+     * instead.  Either way, the results are in the same order as the failures in the build.
+     *
+     * This takes the results directly (rather than from a build) so that Pipeline steps can report
+     * results they parsed themselves.
+     *
+     * @param results The test results, as provided by the test plugin.
+     * @param workspace The workspace path (removed from JUnit traces).
+     * @param repo The git repo details (for the hashes).
+     * @param logger To record class data for debugging.
+     * @return The failed tests found.
+     */
+    public static Iterable<UniformTestResult> unpack(
+            final Object results,
+            final String workspace,
+            final RepoDetails repo,
+            final Logger logger) {
+        List<?> failures = failures(results, logger);
+        if (failures.size() < PARALLEL_THRESHOLD) {
+            return transform(failures, new Factory(workspace, logger));
+        }
+        // per-result debug messages would interleave, so the caller must list the results if needed
+        logger.debug("Unpacking in parallel");
+        failures = new ArrayList<Object>(failures);
+        UniformTestResult[] converted = new UniformTestResult[failures.size()];
+        POOL.invoke(new UnpackTask(failures, converted, new Factory(workspace, logger.withoutDebug()), repo,
+                                   0, converted.length));
+        return Arrays.asList(converted);
+    }
+
+    /**
+     * @param failures The failures, as provided by the test plugin.
+     * @param results Destination for the converted failures (same index).
+     * @param factory Converts individual failures.
+     * @param repo The git repo details (for the hashes).
+     * @param from The first index to convert.
+     * @param to One past the last index to convert.
+     */
+    private static void convert(final List<?> failures,
+                                final UniformTestResult[] results,
+                                final Factory factory,
+                                final RepoDetails repo,
+                                final int from,
+                                final int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = factory.apply(failures.get(i));
+            results[i].getHash(repo);
+        }
+    }
+
+    /**
+     * @param results The test results, as provided by the test plugin.
+     * @param logger To record class data for debugging.
+     * @return The failed tests, as provided by the test plugin.
+     */
+    private static List<?> failures(
+            final Object results,
+            final Logger logger) {
         logger.debug("Unpacking %s", results.getClass().getSimpleName());
         if (results instanceof TapStreamResult) {
             logger.debug("TAP: %d", ((TapStreamResult) results).getFailedTests2().size());
-            return transform(((TapStreamResult) results).getFailedTests2(),
-                    new Factory(build, logger));
+            return ((TapStreamResult) results).getFailedTests2();
         } else if (results instanceof MetaTabulatedResult) {
             logger.debug("Meta: %d", ((MetaTabulatedResult) results).getFailedTests().size());
-            return transform(((MetaTabulatedResult) results).getFailedTests(),
-                    new Factory(build, logger));
+            return ((MetaTabulatedResult) results).getFailedTests();
         } else if (results instanceof RobotResult) {
             logger.debug("Robot: %d", ((RobotResult) results).getAllFailedCases().size());
-            return transform(((RobotResult) results).getAllFailedCases(),
-                    new Factory(build, logger));
+            return ((RobotResult) results).getAllFailedCases();
         } else {
             throw new RuntimeException(format("Cannot handle results of type %s",
                     results.getClass().getSimpleName()));
         }
     }
 
+    /**
+     * Converts (and hashes) a range of failures, splitting the work across the pool when the range is large.
+     */
+    private static final class UnpackTask extends RecursiveAction {
+
+        /** Ranges smaller than this are converted directly. */
+        private static final int CHUNK = 250;
+
+        /** The failures, as provided by the test plugin. */
+        private final List<?> failures;
+
+        /** Destination for the converted failures (same index). */
+        private final UniformTestResult[] results;
+
+        /** Converts individual failures. */
+        private final Factory factory;
+
+        /** The git repo details (for the hashes). */
+        private final RepoDetails repo;
+
+        /** The first index in the range. */
+        private final int from;
+
+        /** One past the last index in the range. */
+        private final int to;
+
+        /**
+         * @param failures The failures, as provided by the test plugin.
+         * @param results Destination for the converted failures (same index).
+         * @param factory Converts individual failures.
+         * @param repo The git repo details (for the hashes).
+         * @param from The first index in the range.
+         * @param to One past the last index in the range.
+         */
+        UnpackTask(final List<?> failures,
+                   final UniformTestResult[] results,
+                   final Factory factory,
+                   final RepoDetails repo,
+                   final int from,
+                   final int to) {
+            this.failures = failures;
+            this.results = results;
+            this.factory = factory;
+            this.repo = repo;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                convert(failures, results, factory, repo, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new UnpackTask(failures, results, factory, repo, from, middle),
+                          new UnpackTask(failures, results, factory, repo, middle, to));
+            }
+        }
+
+    }
+
+    /**
+     * @param key The template's key in the defaults file.
+     * @param builtIn The template to use if the defaults file has none.
+     * @return The compiled template.
+     */
+    private static Template template(final Defaults.Key key, final String builtIn) {
+        String text = DEFAULTS.withDefault(key, null, true);
+        return Template.compile(isBlank(text) ? builtIn : text);
+    }
+
+    /**
+     * The second (deferred) phase of extraction.  Renderers supply the values for the templates.
+     */
+    private interface Renderer extends Template.Source {
+
+        /**
+         * @return A summary of the failing test.
+         */
+        String summary();
+
+        /**
+         * @return A description of the failing test.
+         */
+        String description();
+
+        /**
+         * @param text The text to look for.
+         * @return True if the description would contain the text (checked without building it).
+         */
+        boolean mentions(String text);
+
+        /**
+         * @param out Destination for everything known about the failure.
+         * @throws IOException On error writing.
+         */
+        void writeDetails(Writer out) throws IOException;
+
+        /**
+         * @return The name of the class containing the test (null if unknown).
+         */
+        String className();
+
+        /**
+         * @return The name of the test.
+         */
+        String testName();
+
+        /**
+         * @return The type of the error (null if unknown).
+         */
+        String errorType();
+
+    }
+
+    /**
+     * Renders JUnit results (the trace is normalised, which also removes the workspace path).
+     */
+    private static final class CaseRenderer implements Renderer {
+
+        /** The source of the data. */
+        private final CaseResult result;
+
+        /** Used to clean stack traces. */
+        private final Normaliser normaliser;
+
+        /**
+         * @param result The source of the data.
+         * @param normaliser Used to clean stack traces.
+         */
+        CaseRenderer(final CaseResult result, final Normaliser normaliser) {
+            this.result = result;
+            this.normaliser = normaliser;
+        }
+
+        @Override
+        public String summary() {
+            return template(Defaults.Key.summary_template, CASE_SUMMARY).render(this);
+        }
+
+        @Override
+        public String description() {
+            return template(Defaults.Key.description_template, CASE_DESCRIPTION).render(this);
+        }
+
+        @Override
+        public String get(final Template.Field field) {
+            switch (field) {
+                case TEST:
+                case TITLE:
+                    return result.getName();
+                case CLASS:
+                    return result.getClassName();
+                case ERROR:
+                    return result.getErrorDetails();
+                case TRACE:
+                    return normaliser.normalise(result.getErrorStackTrace());
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public boolean mentions(final String text) {
+            return contains(result.getErrorDetails(), text) || contains(result.getClassName(), text)
+                    || contains(result.getErrorStackTrace(), text);
+        }
+
+        @Override
+        public void writeDetails(final Writer out) throws IOException {
+            write(out, result.getErrorDetails(), "\nClass: ", result.getClassName(),
+                  "\nTrace: ", result.getErrorStackTrace());
+            if (!isBlank(result.getStdout())) {
+                write(out, "\nStandard output:\n", result.getStdout());
+            }
+            if (!isBlank(result.getStderr())) {
+                write(out, "\nStandard error:\n", result.getStderr());
+            }
+        }
+
+        @Override
+        public String className() {
+            return result.getClassName();
+        }
+
+        @Override
+        public String testName() {
+            return result.getName();
+        }
+
+        @Override
+        public String errorType() {
+            String type = errorType(result.getErrorStackTrace());
+            return type == null ? errorType(result.getErrorDetails()) : type;
+        }
+
+    }
+
+    /**
+     * Renders TAP and generic results, which have a name, title and error.
+     */
+    private static final class TitleRenderer implements Renderer {
+
+        /** The source of the data. */
+        private final TestResult result;
+
+        /**
+         * @param result The source of the data.
+         */
+        TitleRenderer(final TestResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public String summary() {
+            return template(Defaults.Key.summary_template, TITLE_SUMMARY).render(this);
+        }
+
+        @Override
+        public String description() {
+            return template(Defaults.Key.description_template, TITLE_DESCRIPTION).render(this);
+        }
+
+        @Override
+        public String get(final Template.Field field) {
+            switch (field) {
+                case TEST:
+                    return result.getName();
+                case TITLE:
+                    return result.getTitle();
+                case ERROR:
+                    return result.getErrorDetails();
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public boolean mentions(final String text) {
+            return contains(result.getTitle(), text) || contains(result.getErrorDetails(), text);
+        }
+
+        @Override
+        public void writeDetails(final Writer out) throws IOException {
+            write(out, result.getTitle(), ": ", result.getErrorDetails());
+        }
+
+        @Override
+        public String className() {
+            return null;
+        }
+
+        @Override
+        public String testName() {
+            return result.getName();
+        }
+
+        @Override
+        public String errorType() {
+            return errorType(result.getErrorDetails());
+        }
+
+    }
+
+    /**
+     * Renders Robot results.
+     */
+    private static final class RobotRenderer implements Renderer {
+
+        /** The source of the data. */
+        private final RobotCaseResult result;
+
+        /**
+         * @param result The source of the data.
+         */
+        RobotRenderer(final RobotCaseResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public String summary() {
+            return template(Defaults.Key.summary_template, ROBOT_SUMMARY).render(this);
+        }
+
+        @Override
+        public String description() {
+            return template(Defaults.Key.description_template, ROBOT_DESCRIPTION).render(this);
+        }
+
+        @Override
+        public String get(final Template.Field field) {
+            switch (field) {
+                case TEST:
+                case TITLE:
+                    return result.getDisplayName();
+                case ERROR:
+                    return result.getErrorMsg();
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public boolean mentions(final String text) {
+            return contains(result.getDisplayName(), text) || contains(result.getErrorMsg(), text);
+        }
+
+        @Override
+        public void writeDetails(final Writer out) throws IOException {
+            write(out, result.getDisplayName(), ": ", result.getErrorMsg());
+        }
+
+        @Override
+        public String className() {
+            return null;
+        }
+
+        @Override
+        public String testName() {
+            return result.getDisplayName();
+        }
+
+        @Override
+        public String errorType() {
+            return errorType(result.getErrorMsg());
+        }
+
+    }
+
+    /**
+     * @param value A value that may be null (and is formatted as "null").
+     * @param text The text to look for.
+     * @return True if the formatted value contains the text.
+     */
+    private static boolean contains(final String value, final String text) {
+        return String.valueOf(value).contains(text);
+    }
+
+    /**
+     * @param out The destination.
+     * @param values Values to write (null is written as "null", as with format()).
+     * @throws IOException On error writing.
+     */
+    private static void write(final Writer out, final String... values) throws IOException {
+        for (String value : values) {
+            out.write(String.valueOf(value));
+        }
+    }
+
+    /**
+     * @param text An error message or stack trace (may be null).
+     * @return The exception class that starts the text ("java.lang.AssertionError: ..."), or null.
+     */
+    static String errorType(final String text) {
+        if (text == null) {
+            return null;
+        }
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != ':' && text.charAt(end) != '\n') {
+            end++;
+        }
+        String type = text.substring(0, end).trim();
+        for (int i = 0; i < type.length(); i++) {
+            char c = type.charAt(i);
+            if (!(Character.isJavaIdentifierPart(c) || c == '.')) {
+                return null;
+            }
+        }
+        return type.isEmpty() ? null : type;
+    }
 
     /**
      * A function to transform test results into uniform instances.
@@ -229,11 +807,11 @@ public final class UniformTestResult {
         private Logger logger;
 
         /**
-         * @param build The current build.
+         * @param workspace The workspace path.
          * @param logger To record class data for debugging.
          */
-        public Factory(final AbstractBuild build, final Logger logger) {
-            workspace = build.getWorkspace().toString();
+        public Factory(final String workspace, final Logger logger) {
+            this.workspace = workspace;
             this.logger = logger;
         }
 
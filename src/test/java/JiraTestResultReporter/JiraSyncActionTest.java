@@ -0,0 +1,93 @@
+package JiraTestResultReporter;
+
+import hudson.model.Run;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Test the record that lets an unchanged build skip Jira.
+ */
+public class JiraSyncActionTest {
+
+    @Test
+    public void matchesIgnoresOrder() {
+        JiraSyncAction action = new JiraSyncAction("target", Arrays.asList("b", "a", "c"), null, true);
+        assertTrue(action.matches(Arrays.asList("c", "a", "b")));
+        assertFalse(action.matches(Arrays.asList("a", "b")));
+        assertFalse(action.matches(Arrays.asList("a", "b", "c", "d")));
+        assertTrue(new JiraSyncAction("target", Collections.<String>emptyList(), null, true)
+                           .matches(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void uncleanSyncIsNotUpToDate() {
+        JiraSyncAction action = new JiraSyncAction("target", Arrays.asList("a"), null, false);
+        assertFalse(action.isUpToDate(Arrays.asList("a"), null));
+        action.markClean();
+        assertTrue(action.isUpToDate(Arrays.asList("a"), null));
+        assertFalse(action.isUpToDate(Arrays.asList("a", "b"), null));
+    }
+
+    @Test
+    public void refreshNeedsTheSameCommit() {
+        JiraSyncAction action = new JiraSyncAction("target", Arrays.asList("a"), "abc", true);
+        assertTrue(action.isUpToDate(Arrays.asList("a"), "abc"));
+        assertFalse(action.isUpToDate(Arrays.asList("a"), "def"));
+        assertFalse(new JiraSyncAction("target", Arrays.asList("a"), null, true).isUpToDate(Arrays.asList("a"), "abc"));
+    }
+
+    @Test
+    public void previousSyncIsFoundForTheSameTargetOnly() {
+        JiraSyncAction mine = new JiraSyncAction("mine", Arrays.asList("a"), null, true);
+        JiraSyncAction other = new JiraSyncAction("other", Arrays.asList("a"), null, true);
+        Run older = build(null, mine);
+        Run newer = build(older, other);
+        Run current = build(newer);
+        assertSame(mine, JiraSyncAction.findPrevious(current, "mine"));
+        assertSame(other, JiraSyncAction.findPrevious(current, "other"));
+        assertNull(JiraSyncAction.findPrevious(current, "missing"));
+    }
+
+    @Test
+    public void searchStopsAfterMaxLookback() {
+        JiraSyncAction action = new JiraSyncAction("target", Arrays.asList("a"), null, true);
+        Run previous = build(null, action);
+        for (int i = 1; i < JiraSyncAction.MAX_LOOKBACK; i++) {
+            previous = build(previous);
+        }
+        assertSame(action, JiraSyncAction.findPrevious(build(previous), "target"));
+        assertNull(JiraSyncAction.findPrevious(build(build(previous)), "target"));
+    }
+
+    @Test
+    public void mostRecentSyncIsUsedEvenIfUnclean() {
+        JiraSyncAction clean = new JiraSyncAction("target", Arrays.asList("a"), null, true);
+        JiraSyncAction pending = new JiraSyncAction("target", Arrays.asList("a"), null, false);
+        JiraSyncAction found = JiraSyncAction.findPrevious(build(build(build(null, clean), pending)), "target");
+        assertSame(pending, found);
+        assertFalse(found.isUpToDate(Arrays.asList("a"), null));
+        assertEquals(1, found.getCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Run build(final Run previous, final JiraSyncAction... actions) {
+        Run build = mock(Run.class);
+        when(build.getPreviousBuild()).thenReturn(previous);
+        List<JiraSyncAction> list = Arrays.asList(actions);
+        when(build.getActions(JiraSyncAction.class)).thenReturn(list);
+        return build;
+    }
+
+}
@@ -0,0 +1,188 @@
+package JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.google.common.base.Predicates;
+import com.isti.jira.FailureSet;
+import com.isti.jira.FlakeHistory;
+import com.isti.jira.Logger;
+import com.isti.jira.Operation;
+import com.isti.jira.RepoDetails;
+import com.isti.jira.TargetLock;
+import com.isti.jira.UniformTestResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Test the planning rules of a sync (no Jira is contacted).
+ */
+public class JiraSyncTest {
+
+    private static final RepoDetails REPO = new RepoDetails("url", "branch", "commit");
+
+    private static final Logger LOGGER = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void limitCreatesKeepsTheFirstCreatesAndAllCloses() {
+        Operation a = create("a");
+        Operation close = close("c");
+        Operation b = create("b");
+        Operation d = create("d");
+        List<Operation> operations = new ArrayList<Operation>(Arrays.asList(a, close, b, d));
+        assertTrue(JiraSync.limitCreates(operations, 2, LOGGER));
+        assertEquals(Arrays.asList(a, close, b), operations);
+        assertFalse(JiraSync.limitCreates(operations, 2, LOGGER));
+        assertFalse(JiraSync.limitCreates(operations, 0, LOGGER));
+        assertEquals(3, operations.size());
+    }
+
+    @Test
+    public void hysteresisHoldsBackFlakyCreatesAndCloses() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        Operation flaky = create("flaky");
+        Operation steady = create("steady");
+        Operation close = close("fixed");
+        history.record(Arrays.asList(steady.getHash(), close.getHash()));
+        history.record(Arrays.asList(steady.getHash()));
+        history.record(Arrays.asList(flaky.getHash(), steady.getHash()));
+
+        List<Operation> operations = new ArrayList<Operation>(Arrays.asList(flaky, steady, close));
+        assertTrue(sync(2, 3, 3, null).applyHysteresis(operations, history, LOGGER));
+        assertEquals(Collections.singletonList(steady), operations);
+
+        operations = new ArrayList<Operation>(Arrays.asList(flaky, close));
+        assertFalse(sync(1, 1, 2, null).applyHysteresis(operations, history, LOGGER));
+        assertEquals(Arrays.asList(flaky, close), operations);
+    }
+
+    @Test
+    public void scopedSyncOnlyClosesFailuresItHasSeen() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        Operation seen = close("seen");
+        Operation other = close("other stage");
+        history.record(Arrays.asList(seen.getHash()));
+        history.record(Collections.<String>emptyList());
+
+        List<Operation> operations = new ArrayList<Operation>(Arrays.asList(seen, other));
+        assertFalse(sync(1, 1, 1, "stage").applyHysteresis(operations, history, LOGGER));
+        assertEquals(1, operations.size());
+        assertSame(seen, operations.get(0));
+    }
+
+    @Test
+    public void stagesShareTheLockOfTheirTarget() throws InterruptedException {
+        TargetLock held = sync(1, 1, 1, null).lock("base");
+        final JiraSync stage = sync(1, 1, 1, "stage");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean contended = new AtomicBoolean();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TargetLock lock = stage.lock("base stage");
+                contended.set(lock.isContended());
+                lock.release();
+                acquired.countDown();
+            }
+        }).start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        held.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertTrue(contended.get());
+    }
+
+    @Test
+    public void earlyCreatesStopOnceTheBuildHasAStorm() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        JiraSync sync = sync(2, 0);
+        Set<String> known = new HashSet<String>();
+        Set<String> unreported = new HashSet<String>();
+
+        // each batch is small, but the build as a whole is a storm once a third new failure arrives
+        List<Operation> first = sync.planEarlyCreates("job", "target", batch("a", "b"), known, unreported, 0,
+                                                      history, LOGGER);
+        assertEquals(2, first.size());
+        for (Operation operation : first) {
+            known.add(operation.getHash());
+        }
+        assertTrue(sync.planEarlyCreates("job", "target", batch("a", "c"), known, unreported, 2, history,
+                                         LOGGER).isEmpty());
+        assertEquals(3, unreported.size());
+        assertTrue(sync.isStorm(unreported.size()));
+    }
+
+    @Test
+    public void earlyCreatesSkipKnownFailuresAndRespectTheCap() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        JiraSync sync = sync(0, 3);
+        Set<String> known = new HashSet<String>();
+        Set<String> unreported = new HashSet<String>();
+        known.add(new UniformTestResult("a", "description").getHash(REPO));
+
+        List<Operation> operations = sync.planEarlyCreates("job", "target", batch("a", "b", "c", "d"), known,
+                                                           unreported, 1, history, LOGGER);
+        assertEquals(2, operations.size());
+        assertEquals("b", operations.get(0).getSummary());
+        assertEquals(3, unreported.size());
+        assertTrue(sync.planEarlyCreates("job", "target", batch("e"), known, unreported, 3, history,
+                                         LOGGER).isEmpty());
+        assertFalse(sync.isStorm(unreported.size()));
+    }
+
+    private static FailureSet batch(final String... summaries) {
+        FailureSet failures = new FailureSet(REPO, Predicates.<UniformTestResult>alwaysFalse(), LOGGER);
+        for (String summary : summaries) {
+            failures.add(new UniformTestResult(summary, "description"));
+        }
+        return failures;
+    }
+
+    private static JiraSync sync(final int stormThreshold, final int maxCreates) {
+        return new JiraSync("http://jira", "user", "password", "project", "bug", "Close issue", 0, stormThreshold,
+                            maxCreates, 0, 0, 0, null, null, new Properties());
+    }
+
+    private static JiraSync sync(final int openFailures, final int openBuilds, final int closePasses,
+                                 final String scope) {
+        return new JiraSync("http://jira", "user", "password", "project", "bug", "Close issue", 0, 0, 0,
+                            openFailures, openBuilds, closePasses, scope, null, new Properties());
+    }
+
+    private static Operation create(final String summary) {
+        return new Operation.Create("job", null, "target", "project", "bug", REPO,
+                                    new UniformTestResult(summary, "description"));
+    }
+
+    private static Operation close(final String summary) {
+        Issue issue = mock(Issue.class);
+        when(issue.getSummary()).thenReturn(summary);
+        when(issue.getKey()).thenReturn("KEY-1");
+        return new Operation.Close("job", null, "target", "project", "bug", REPO,
+                                   new UniformTestResult(summary, "description").getHash(REPO), issue, "Close issue");
+    }
+
+}
@@ -0,0 +1,77 @@
+package JiraTestResultReporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the scan for changed JUnit reports made by each poll of a streaming build.
+ */
+public class StreamingReportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reportsAreReadOnceSettled() throws IOException {
+        File report = report("TEST-a.xml", "a");
+        StreamingReport.Batch batch = scan(Collections.<String, Long>emptyMap());
+        assertEquals(0, batch.files);
+        assertTrue(batch.seen.isEmpty());
+
+        settle(report);
+        batch = scan(Collections.<String, Long>emptyMap());
+        assertEquals(1, batch.files);
+        assertEquals(1, batch.result.getFailCount());
+        assertEquals(Long.valueOf(report.lastModified()), batch.seen.get("TEST-a.xml"));
+    }
+
+    @Test
+    public void onlyChangedReportsAreReadAgain() throws IOException {
+        File a = settle(report("TEST-a.xml", "a"));
+        settle(report("TEST-b.xml", "b"));
+        Map<String, Long> seen = scan(Collections.<String, Long>emptyMap()).seen;
+        assertEquals(0, scan(seen).files);
+
+        assertTrue(a.setLastModified(a.lastModified() - 1000));
+        StreamingReport.Batch batch = scan(seen);
+        assertEquals(1, batch.files);
+        assertEquals(1, batch.result.getFailCount());
+        // the caller's copy is not changed
+        assertEquals(Long.valueOf(a.lastModified() + 1000), seen.get("TEST-a.xml"));
+    }
+
+    private StreamingReport.Batch scan(final Map<String, Long> seen) throws IOException {
+        return new StreamingReport.ReportScanner("*.xml", seen)
+                .invoke(folder.getRoot(), null);
+    }
+
+    private File report(final String name, final String test) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), Arrays.asList(
+                "<testsuite name='suite' tests='1' failures='1'>",
+                "  <testcase classname='com.example.Test' name='" + test + "'>",
+                "    <failure message='boom'>java.lang.AssertionError: boom</failure>",
+                "  </testcase>",
+                "</testsuite>"), Charset.forName("UTF-8"));
+        return file;
+    }
+
+    private static File settle(final File file) {
+        assertTrue(file.setLastModified(System.currentTimeMillis() - StreamingReport.SETTLE - 60000));
+        return file;
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.isti.jira;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the cache of content written to issues.
+ */
+public class ContentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyChangesAreReported() {
+        ContentCache cache = new ContentCache(new File(folder.getRoot(), "cache"));
+        assertTrue(cache.isChanged("KEY-1", "commit 1"));
+        cache.put("KEY-1", "commit 1");
+        assertFalse(cache.isChanged("KEY-1", "commit 1"));
+        assertTrue(cache.isChanged("KEY-1", "commit 2"));
+        assertTrue(cache.isChanged("KEY-2", "commit 1"));
+    }
+
+    @Test
+    public void cacheSurvivesReopening() {
+        File file = new File(new File(folder.getRoot(), "dir"), "cache");
+        ContentCache cache = new ContentCache(file);
+        cache.put("KEY-1", "commit 1");
+        cache.put("KEY-2", "commit 1");
+        cache.retain(Collections.singleton("KEY-1"));
+        cache.save();
+        ContentCache reopened = new ContentCache(file);
+        assertFalse(reopened.isChanged("KEY-1", "commit 1"));
+        assertTrue(reopened.isChanged("KEY-2", "commit 1"));
+    }
+
+}
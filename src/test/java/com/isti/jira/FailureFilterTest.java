@@ -0,0 +1,68 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the rules for ignoring failures.
+ */
+public class FailureFilterTest {
+
+    @Test
+    public void skippedTestsAreAlwaysIgnored() {
+        FailureFilter filter = new FailureFilter(null);
+        assertTrue(filter.apply(failure("test", "org.testng.SkippedException: not run")));
+        assertTrue(filter.apply(new UniformTestResult("test", "Error\nCaused by: SkippedException", "Error")));
+        assertTrue(filter.apply(new UniformTestResult("test", "not ok: SkippedException (TAP)", (String) null)));
+        assertFalse(filter.apply(failure("test", "java.lang.AssertionError: expected 1")));
+    }
+
+    @Test
+    public void literalsGlobsAndRegexps() {
+        FailureFilter filter = new FailureFilter("test:flaky\n\n  error:java.io.*  \n/.*IT/\n");
+        assertTrue(filter.apply(failure("flaky", "java.lang.AssertionError")));
+        assertFalse(filter.apply(failure("flaky2", "java.lang.AssertionError")));
+        assertTrue(filter.apply(failure("other", "java.io.IOException: closed")));
+        assertTrue(filter.apply(failure("ServerIT", "java.lang.AssertionError")));
+        assertFalse(filter.apply(failure("ServerITs", "java.lang.AssertionError")));
+    }
+
+    @Test
+    public void globsQuoteOtherCharacters() {
+        assertEquals("\\Qa.b\\E.*\\Q(c)\\E.", FailureFilter.toRegex("a.b*(c)?"));
+    }
+
+    @Test
+    public void backreferencesKeepTheirGroups() {
+        FailureFilter filter = new FailureFilter("test:/(x)y/\ntest:/(\\w+)-\\1/\ntest:other");
+        assertTrue(filter.apply(failure("abc-abc", "java.lang.AssertionError")));
+        assertFalse(filter.apply(failure("abc-abd", "java.lang.AssertionError")));
+        assertTrue(filter.apply(failure("xy", "java.lang.AssertionError")));
+        assertTrue(filter.apply(failure("other", "java.lang.AssertionError")));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void badRegexpIsRejected() {
+        new FailureFilter("/(/");
+    }
+
+    @Test
+    public void errorTypeIsLeadingClassName() {
+        assertEquals("java.lang.AssertionError", UniformTestResult.errorType("java.lang.AssertionError: x"));
+        assertEquals("Foo$Bar", UniformTestResult.errorType("Foo$Bar\n\tat somewhere"));
+        assertNull(UniformTestResult.errorType("expected 1 but was 2"));
+        assertNull(UniformTestResult.errorType(null));
+    }
+
+    private static UniformTestResult failure(final String test, final String error) {
+        return new UniformTestResult(test, error, error);
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Test the rules for sending failures to different projects.
+ */
+public class FailureRouterTest {
+
+    @Test
+    public void firstMatchingRouteWins() {
+        FailureRouter router = new FailureRouter("test:*IT => QA, Task, http://jira2\n\n"
+                                                 + "error:java.sql.* => DB\n"
+                                                 + "test:Server* => OPS\n");
+        assertEquals(3, router.getRoutes().size());
+        FailureRouter.Route route = router.route(failure("ServerIT", "java.sql.SQLException: gone"));
+        assertEquals("QA", route.getProject());
+        assertEquals("Task", route.getIssueType());
+        assertEquals("http://jira2", route.getServerUrl());
+        route = router.route(failure("ServerTest", "java.sql.SQLException: gone"));
+        assertEquals("DB", route.getProject());
+        assertNull(route.getIssueType());
+        assertNull(route.getServerUrl());
+        assertNull(router.route(failure("ClientTest", "java.lang.AssertionError")));
+    }
+
+    @Test
+    public void blankPartsAreOmitted() {
+        FailureRouter router = new FailureRouter("test:a => DB, ,\n\n");
+        assertEquals(1, router.getRoutes().size());
+        assertNull(router.getRoutes().get(0).getIssueType());
+        assertNull(router.getRoutes().get(0).getServerUrl());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingProjectIsRejected() {
+        new FailureRouter("test:a =>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingArrowIsRejected() {
+        new FailureRouter("test:a DB");
+    }
+
+    private static UniformTestResult failure(final String test, final String error) {
+        return new UniformTestResult(test, "description", error);
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.isti.jira;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the single-pass accumulation of failures.
+ */
+public class FailureSetTest {
+
+    private static final Predicate<UniformTestResult> SKIPPED = new Predicate<UniformTestResult>() {
+        @Override
+        public boolean apply(final UniformTestResult result) {
+            return result.mentions("SkippedException");
+        }
+    };
+
+    @Test
+    public void filterAndDeduplicate() {
+        RepoDetails repo = new RepoDetails("url", "branch", "commit");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        FailureSet failures = new FailureSet(repo, SKIPPED, logger).addAll(Arrays.asList(
+                new UniformTestResult("a", "description"),
+                new UniformTestResult("b", "SkippedException"),
+                new UniformTestResult("a", "another description"),
+                new UniformTestResult("c", "description")));
+        assertEquals(4, failures.getCount());
+        assertEquals(2, failures.getHashes().size());
+        Iterator<UniformTestResult> results = failures.getResults().iterator();
+        assertEquals("description", results.next().getDescription());
+        assertEquals("c", results.next().getSummary());
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void classifyKeepsOnlyNewFailures() {
+        RepoDetails repo = new RepoDetails("url", "branch", "commit");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        UniformTestResult known = new UniformTestResult("a", "description");
+        FailureSet failures = new FailureSet(repo, SKIPPED, logger).addAll(Arrays.asList(
+                known, new UniformTestResult("b", "description")));
+        failures.classify(Collections.singleton(known.getHash(repo)));
+        assertEquals(2, failures.getHashes().size());
+        assertEquals(1, failures.getResults().size());
+        assertEquals("b", failures.getResults().iterator().next().getSummary());
+    }
+
+    @Test
+    public void stormsAreClusteredByError() {
+        RepoDetails repo = new RepoDetails("url", "branch", "commit");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        FailureSet failures = new FailureSet(repo, SKIPPED, logger);
+        for (int i = 0; i < 5; i++) {
+            failures.add(new UniformTestResult("test" + i, "description",
+                                               "java.net.ConnectException: refused localhost:" + (8080 + i)));
+        }
+        failures.add(new UniformTestResult("other", "description", "java.net.ConnectException: timed out"));
+        failures.classify(Collections.<String>emptySet());
+        assertFalse(failures.cluster(6, Collections.<String>emptySet()));
+        assertTrue(failures.cluster(3, Collections.<String>emptySet()));
+        assertEquals(7, failures.getHashes().size());
+        Iterator<UniformTestResult> results = failures.getResults().iterator();
+        UniformTestResult storm = results.next();
+        assertEquals("5 tests failed with 'java.net.ConnectException: refused localhost:<port>'",
+                     storm.getSummary());
+        assertTrue(storm.getDescription().contains("test4"));
+        assertEquals("other", results.next().getSummary());
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void openStormKeepsItsFailuresAfterItDiesDown() {
+        RepoDetails repo = new RepoDetails("url", "branch", "commit");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        FailureSet storm = new FailureSet(repo, SKIPPED, logger);
+        for (int i = 0; i < 5; i++) {
+            storm.add(new UniformTestResult("test" + i, "description", "java.io.IOException: disk full"));
+        }
+        storm.classify(Collections.<String>emptySet());
+        storm.cluster(3, Collections.<String>emptySet());
+        Set<String> known = Collections.singleton(storm.getResults().iterator().next().getHash(repo));
+
+        FailureSet failures = new FailureSet(repo, SKIPPED, logger);
+        failures.add(new UniformTestResult("test1", "description", "java.io.IOException: disk full"));
+        failures.add(new UniformTestResult("other", "description", "expected 1 but was 2"));
+        failures.classify(known);
+        assertTrue(failures.cluster(3, known));
+        assertTrue(failures.getHashes().containsAll(known));
+        assertEquals(1, failures.getResults().size());
+        assertEquals("other", failures.getResults().iterator().next().getSummary());
+    }
+
+    @Test
+    public void splitDividesFailuresBetweenSets() {
+        RepoDetails repo = new RepoDetails("url", "branch", "commit");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        FailureSet failures = new FailureSet(repo, SKIPPED, logger).addAll(Arrays.asList(
+                new UniformTestResult("a", "description"),
+                new UniformTestResult("b", "description"),
+                new UniformTestResult("a", "description")));
+        List<FailureSet> sets = failures.split(new Function<UniformTestResult, Integer>() {
+            @Override
+            public Integer apply(final UniformTestResult result) {
+                return "a".equals(result.getSummary()) ? 0 : 2;
+            }
+        }, 3);
+        assertEquals(3, sets.size());
+        assertEquals(1, sets.get(0).getHashes().size());
+        assertEquals(0, sets.get(1).getHashes().size());
+        assertEquals("b", sets.get(2).getResults().iterator().next().getSummary());
+        assertTrue(failures.getHashes().containsAll(sets.get(2).getHashes()));
+    }
+
+    @Test
+    public void signatureMasksNumbersWithoutErrorType() {
+        assertEquals("expected # but was #",
+                     FailureSet.signature(new UniformTestResult("a", "b", "expected 1 but was 22\nmore")));
+    }
+
+}
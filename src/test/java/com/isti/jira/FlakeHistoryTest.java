@@ -0,0 +1,86 @@
+package com.isti.jira;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the pass/fail history used to ignore flaky tests.
+ */
+public class FlakeHistoryTest {
+
+    private static final Set<String> FAIL = Collections.singleton("hash");
+
+    private static final Set<String> PASS = Collections.emptySet();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void openAfterEnoughRecentFailures() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        assertTrue(history.shouldOpen("hash", 2, 3));
+        history.record(FAIL);
+        assertFalse(history.shouldOpen("hash", 2, 3));
+        history.record(PASS);
+        history.record(FAIL);
+        assertTrue(history.shouldOpen("hash", 2, 3));
+        history.record(PASS);
+        assertFalse(history.shouldOpen("hash", 2, 3));
+        assertFalse(history.shouldOpen("hash", 1, 1));
+    }
+
+    @Test
+    public void closeAfterEnoughPasses() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        history.record(FAIL);
+        history.record(PASS);
+        assertTrue(history.shouldClose("hash", 1));
+        assertFalse(history.shouldClose("hash", 2));
+        history.record(PASS);
+        assertTrue(history.shouldClose("hash", 2));
+    }
+
+    @Test
+    public void historySurvivesReopening() {
+        File file = new File(new File(folder.getRoot(), "dir"), "history");
+        FlakeHistory history = new FlakeHistory(file);
+        history.record(FAIL);
+        history.record(PASS);
+        FlakeHistory reopened = new FlakeHistory(file);
+        assertFalse(reopened.shouldClose("hash", 2));
+        assertFalse(reopened.shouldOpen("hash", 1, 1));
+        assertTrue(reopened.shouldOpen("hash", 1, 2));
+    }
+
+    @Test
+    public void failuresAreForgottenAfterAllBuilds() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        history.record(FAIL);
+        for (int i = 0; i < FlakeHistory.LENGTH; i++) {
+            history.record(PASS);
+        }
+        // no history, so anything is allowed
+        assertTrue(history.shouldOpen("hash", 1, 1));
+        assertFalse(history.knows("hash"));
+    }
+
+    @Test
+    public void onlyRecordedFailuresAreKnown() {
+        FlakeHistory history = new FlakeHistory(new File(folder.getRoot(), "history"));
+        assertFalse(history.knows("hash"));
+        history.record(FAIL);
+        history.record(PASS);
+        assertTrue(history.knows("hash"));
+        assertTrue(history.copy().knows("hash"));
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.isti.jira;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the journal of pending operations.
+ */
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pendingOperationsSurviveReopening() throws IOException {
+        File file = new File(folder.getRoot(), "journal.txt");
+        Journal journal = new Journal(file);
+        Operation create = create("target", "summary", "multi\nline\tdescription");
+        Operation close = close("target", "KEY-1");
+        journal.plan("target", Arrays.asList(create, close));
+        journal.complete(close);
+
+        List<Operation> pending = new Journal(file).pending();
+        assertEquals(1, pending.size());
+        Operation.Create replayed = (Operation.Create) pending.get(0);
+        assertEquals(create.getHash(), replayed.getHash());
+        assertEquals("multi\nline\tdescription", replayed.getResult().getDescription());
+        assertEquals(null, replayed.getRepo().getCommit());
+        assertEquals(null, replayed.getScope());
+    }
+
+    @Test
+    public void scopeSurvivesReopening() {
+        File file = new File(folder.getRoot(), "journal.txt");
+        new Journal(file).plan("target stage", Arrays.asList(close("target stage", "KEY-1")));
+
+        Operation replayed = new Journal(file).pending().get(0);
+        assertEquals("job", replayed.getJob());
+        assertEquals("stage", replayed.getScope());
+        assertEquals("KEY-1", ((Operation.Close) replayed).getIssueKey());
+    }
+
+    @Test
+    public void operationsJournalledWithoutAScopeAreRead() throws IOException {
+        File file = new File(folder.getRoot(), "journal.txt");
+        Files.write(file.toPath(), Arrays.asList("P\t1\tClose\tjob\ttarget\tproject\tbug\turl\tbranch\tcommit"
+                                                 + "\thash\tsummary\tKEY-1\tClose+issue"), Charset.forName("UTF-8"));
+
+        Operation replayed = new Journal(file).pending().get(0);
+        assertEquals(null, replayed.getScope());
+        assertEquals("KEY-1", ((Operation.Close) replayed).getIssueKey());
+    }
+
+    @Test
+    public void newPlanSupersedesOldForSameTarget() {
+        Journal journal = new Journal(new File(folder.getRoot(), "journal.txt"));
+        Operation old = create("target", "old", "description");
+        Operation other = create("other", "other", "description");
+        journal.plan("target", Arrays.asList(old));
+        journal.plan("other", Arrays.asList(other));
+        journal.plan("target", Arrays.asList(close("target", "KEY-2")));
+        assertFalse(journal.isPending(old));
+        assertTrue(journal.isPending(other));
+        assertEquals(1, journal.pending("target").size());
+    }
+
+    @Test
+    public void addedOperationsSupersedeNothing() {
+        File file = new File(folder.getRoot(), "journal.txt");
+        Journal journal = new Journal(file);
+        Operation old = close("target", "KEY-1");
+        Operation early = create("target", "early", "description");
+        journal.plan("target", Arrays.asList(old));
+        journal.add(Arrays.asList(early));
+        assertTrue(journal.isPending(old));
+        assertTrue(journal.isPending(early));
+        assertEquals(2, new Journal(file).pending("target").size());
+    }
+
+    @Test
+    public void fileIsEmptiedWhenNothingIsPending() {
+        File file = new File(folder.getRoot(), "journal.txt");
+        Journal journal = new Journal(file);
+        Operation create = create("target", "summary", "description");
+        journal.plan("target", Arrays.asList(create));
+        assertTrue(file.length() > 0);
+        journal.complete(create);
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void fileIsCompactedWhileOperationsArePending() {
+        File file = new File(folder.getRoot(), "journal.txt");
+        Journal journal = new Journal(file, 10);
+        Operation waiting = create("other", "waiting", "description");
+        journal.plan("other", Arrays.asList(waiting));
+        for (int i = 0; i < 20; i++) {
+            Operation create = create("target", "summary " + i, "description");
+            journal.plan("target", Arrays.asList(create));
+            journal.complete(create);
+        }
+        Operation last = create("target", "last", "description");
+        journal.plan("target", Arrays.asList(last));
+
+        List<Operation> pending = new Journal(file).pending();
+        assertEquals(2, pending.size());
+        assertEquals(waiting.getHash(), pending.get(0).getHash());
+        assertEquals(last.getHash(), pending.get(1).getHash());
+        assertTrue(lineCount(file) < 10);
+    }
+
+    private static int lineCount(final File file) {
+        try {
+            return Files.readAllLines(file.toPath(), Charset.forName("UTF-8")).size();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Operation create(final String target, final String summary, final String description) {
+        return new Operation.Create("job", null, target, "project", "bug", new RepoDetails("url", "branch", null),
+                                    new UniformTestResult(summary, description));
+    }
+
+    private static Operation close(final String target, final String key) {
+        return new Operation.Close("job", target.endsWith(" stage") ? "stage" : null, target, "project", "bug",
+                                   new RepoDetails("url", "branch", "commit"), "hash", "summary", key, "Close issue");
+    }
+
+}
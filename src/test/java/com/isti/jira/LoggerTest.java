@@ -3,12 +3,22 @@ package com.isti.jira;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -18,12 +28,15 @@ import static org.mockito.Mockito.when;
  */
 public class LoggerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void output() {
         AbstractProject project = mock(AbstractProject.class);
         when(project.getName()).thenReturn("name");
         AbstractBuild build = mock(AbstractBuild.class);
-        when(build.getProject()).thenReturn(project);
+        when(build.getParent()).thenReturn(project);
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         PrintStream stream = new PrintStream(buffer);
         BuildListener listener = mock(BuildListener.class);
@@ -42,4 +55,77 @@ public class LoggerTest {
         assertEquals(buffer.toString(), buffer.toString(), "DEBUG name: a debug message\n");
     }
 
+    @Test
+    public void summarisingShowsSamples() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Logger logger = Logger.summarising("name", new PrintStream(buffer), null);
+        for (int i = 0; i < 10; i++) {
+            logger.repeated("Skipping", "Skipping %d", i);
+        }
+        logger.debug("a %s message", "debug");
+        logger.info("info message %d", 1);
+        logger.close();
+        assertEquals("INFO name: Skipping 0\nINFO name: Skipping 1\nINFO name: Skipping 2\n"
+                     + "INFO name: info message 1\nINFO name: Skipping: 7 more not shown\n", buffer.toString());
+    }
+
+    @Test
+    public void mutableArgumentsAreFormattedWhenLogged() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Logger logger = Logger.summarising("name", new PrintStream(buffer), null);
+        StringBuilder text = new StringBuilder("before");
+        logger.info("%s %d", text, 1);
+        text.setLength(0);
+        text.append("after");
+        logger.close();
+        assertEquals("INFO name: before 1\n", buffer.toString());
+    }
+
+    @Test
+    public void repeatsNotShownAreNotFormatted() {
+        final AtomicInteger formatted = new AtomicInteger();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "argument";
+            }
+        };
+        Logger logger = Logger.summarising("name", new PrintStream(new ByteArrayOutputStream()), null);
+        for (int i = 0; i < 10; i++) {
+            logger.repeated("Skipping", "Skipping %s", argument);
+        }
+        logger.close();
+        assertEquals(Logger.SAMPLES, formatted.get());
+    }
+
+    @Test
+    public void debugDetailIsGzipped() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        File file = new File(folder.getRoot(), Logger.DETAIL_LOG);
+        Logger logger = Logger.summarising("name", new PrintStream(buffer), file);
+        for (int i = 0; i < 5; i++) {
+            logger.repeated("Skipping", "Skipping %d", i);
+        }
+        logger.withoutDebug().debug("not shown");
+        logger.debug("a %s message", "debug");
+        logger.close();
+        assertFalse(buffer.toString(), buffer.toString().contains("DEBUG"));
+        assertTrue(buffer.toString(), buffer.toString().contains(Logger.DETAIL_LOG));
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            byte[] block = new byte[4096];
+            for (int n = in.read(block); n >= 0; n = in.read(block)) {
+                contents.write(block, 0, n);
+            }
+            String detail = contents.toString("UTF-8");
+            assertTrue(detail, detail.contains("INFO name: Skipping 4\n"));
+            assertTrue(detail, detail.contains("DEBUG name: a debug message\n"));
+            assertFalse(detail, detail.contains("not shown"));
+        } finally {
+            in.close();
+        }
+    }
+
 }
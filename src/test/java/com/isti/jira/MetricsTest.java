@@ -0,0 +1,50 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Test the metrics registry.
+ */
+public class MetricsTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void callsAreCountedByBucket() {
+        Metrics metrics = new Metrics();
+        metrics.recordCall("search", 5, false);
+        metrics.recordCall("search", 10, false);
+        metrics.recordCall("search", 700, true);
+        metrics.recordCall("search", 60000, false);
+        Map<String, Object> search = (Map<String, Object>) ((Map<String, Object>) metrics.snapshot().get("calls"))
+                .get("search");
+        assertEquals(4L, search.get("count"));
+        assertEquals(1L, search.get("errors"));
+        assertEquals(60715L, search.get("totalMs"));
+        assertEquals(60000L, search.get("maxMs"));
+        Map<String, Long> le = (Map<String, Long>) search.get("le");
+        assertEquals(Long.valueOf(2), le.get("10"));
+        assertEquals(Long.valueOf(2), le.get("500"));
+        assertEquals(Long.valueOf(3), le.get("1000"));
+        assertEquals(Long.valueOf(3), le.get("30000"));
+        assertEquals(Long.valueOf(4), le.get("+Inf"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void countersAndSyncs() {
+        Metrics metrics = new Metrics();
+        metrics.increment("issues created");
+        metrics.increment("issues created");
+        metrics.recordSync("job", 1500, false);
+        Map<String, Object> snapshot = metrics.snapshot();
+        assertEquals(2L, ((Map<String, Long>) snapshot.get("counters")).get("issues created").longValue());
+        Map<String, Object> job = (Map<String, Object>) ((Map<String, Object>) snapshot.get("syncs")).get("job");
+        assertEquals(1L, job.get("count"));
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Test the masking of volatile text.
+ */
+public class NormaliserTest {
+
+    @Test
+    public void plainTextIsUnchanged() {
+        String text = "expected:<1> but was:<2>";
+        assertSame(text, Normaliser.get(Normaliser.Type.generic).normalise(text));
+    }
+
+    @Test
+    public void volatileTokensAreMasked() {
+        Normaliser normaliser = Normaliser.get(Normaliser.Type.junit, "/var/lib/jenkins/workspace/job");
+        assertEquals("at <timestamp> in com.foo.Bar@<address> on localhost:<port> reading <tmp>",
+                     normaliser.normalise("at 2015-06-01T12:34:56.789Z in com.foo.Bar@1b6d3586 "
+                                          + "on localhost:8080 reading /tmp/junit12345/data.txt"));
+        assertEquals("at Foo.java(/src/Foo.java:12) 0x<address> <uuid> <time>",
+                     normaliser.normalise("at Foo.java(/var/lib/jenkins/workspace/job/src/Foo.java:12) "
+                                          + "0x7ffe1234 123e4567-e89b-12d3-a456-426655440000 12:34:56"));
+    }
+
+    @Test
+    public void extraRuleKeepsItsOwnGroups() {
+        Properties properties = new Properties();
+        properties.setProperty("mask_junit", "(['\"])session-\\w+\\1");
+        Normaliser normaliser = new Normaliser(Normaliser.Type.junit, null, new Defaults(properties));
+        assertEquals("no session <masked> at <time>",
+                     normaliser.normalise("no session 'session-a1b2' at 12:34:56"));
+        assertEquals("'session-a1b2\"", normaliser.normalise("'session-a1b2\""));
+    }
+
+    @Test
+    public void invalidExtraRuleIsIgnored() {
+        Properties properties = new Properties();
+        properties.setProperty("mask_tap", "session-([0-9");
+        Normaliser normaliser = new Normaliser(Normaliser.Type.tap, null, new Defaults(properties));
+        assertEquals("session-12 at <time>", normaliser.normalise("session-12 at 12:34:56"));
+    }
+
+    @Test
+    public void nullIsAllowed() {
+        assertEquals(null, Normaliser.get(Normaliser.Type.tap).normalise(null));
+    }
+
+}
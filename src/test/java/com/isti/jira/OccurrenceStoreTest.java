@@ -0,0 +1,98 @@
+package com.isti.jira;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the store of failure occurrences.
+ */
+public class OccurrenceStoreTest {
+
+    private static final String A = "0123456789abcdef0123456789abcdef01234567";
+
+    private static final String B = "89abcdef0123456789abcdef0123456789abcdef";
+
+    private static final String COMMIT = "ffffffffffffffffffffffffffffffffffffffff";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void firstLastAndRate() {
+        OccurrenceStore store = new OccurrenceStore(folder.getRoot());
+        store.record("job", 1, 1000, null, Arrays.asList(A));
+        store.record("other", 1, 1500, null, Arrays.asList(A, B));
+        store.record("job", 2, 2000, COMMIT, Arrays.asList(A, B));
+        store.record("job", 3, 3000, null, Collections.<String>emptyList());
+        store.record("job", 4, 4000, COMMIT, Arrays.asList(B));
+
+        Map<String, OccurrenceStore.Stats> stats = new OccurrenceStore(folder.getRoot()).query("job");
+        Iterator<OccurrenceStore.Stats> ordered = stats.values().iterator();
+        OccurrenceStore.Stats b = ordered.next();
+        assertEquals(B, b.getHash());
+        assertEquals(2, b.getFirstBuild());
+        assertEquals(4, b.getLastBuild());
+        assertEquals(COMMIT, b.getLastCommit());
+        assertEquals(2, b.getFailures());
+        assertEquals(3, b.getBuilds());
+
+        OccurrenceStore.Stats a = ordered.next();
+        assertEquals(1, a.getFirstBuild());
+        assertEquals(1000, a.getFirstTime());
+        assertEquals(2000, a.getLastTime());
+        assertEquals(COMMIT, store.query("job", A).getLastCommit());
+        assertEquals(0.5, a.getRate(), 1e-9);
+        assertTrue(store.query("missing").isEmpty());
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws IOException {
+        OccurrenceStore store = new OccurrenceStore(folder.getRoot());
+        store.record("job", 1, 1000, null, Arrays.asList(A));
+        FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), "occurrences-0.dat"), true);
+        out.write(new byte[OccurrenceStore.RECORD / 2]);
+        out.close();
+        assertEquals(1, store.query("job").size());
+        store.record("job", 2, 2000, null, Arrays.asList(A));
+        assertEquals(2, store.query("job", A).getFailures());
+    }
+
+    @Test
+    public void buildRecordedTwiceIsCountedOnce() {
+        OccurrenceStore store = new OccurrenceStore(folder.getRoot());
+        store.record("job", 1, 1000, null, Arrays.asList(A));
+        store.record("job", 1, 1000, null, Arrays.asList(A, B));
+        store.record("job", 2, 2000, null, Collections.<String>emptyList());
+        store.record("job", 2, 2000, null, Collections.<String>emptyList());
+        OccurrenceStore.Stats a = store.query("job", A);
+        assertEquals(1, a.getFailures());
+        assertEquals(2, a.getBuilds());
+        assertEquals(2, store.query("job", B).getBuilds());
+    }
+
+    @Test
+    public void interleavedBuildRecordedTwiceIsCountedOnce() {
+        OccurrenceStore store = new OccurrenceStore(folder.getRoot());
+        store.record("job", 1, 1000, null, Arrays.asList(A));
+        store.record("job", 2, 2000, null, Arrays.asList(A));
+        store.record("job", 1, 1000, null, Arrays.asList(A));
+        OccurrenceStore.Stats a = store.query("job", A);
+        assertEquals(2, a.getFailures());
+        assertEquals(2, a.getLastBuild());
+        assertTrue(a.getRate() <= 1);
+    }
+
+}
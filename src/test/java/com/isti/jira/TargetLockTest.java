@@ -0,0 +1,89 @@
+package com.isti.jira;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the locks that serialise syncs for a target.
+ */
+public class TargetLockTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameTargetWaits() throws InterruptedException {
+        TargetLock held = TargetLock.acquire("target", null);
+        assertFalse(held.isContended());
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean contended = new AtomicBoolean();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TargetLock lock = TargetLock.acquire("target", null);
+                contended.set(lock.isContended());
+                lock.release();
+                acquired.countDown();
+            }
+        });
+        other.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        held.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertTrue(contended.get());
+    }
+
+    @Test
+    public void otherTargetsDontWait() throws InterruptedException {
+        TargetLock held = TargetLock.acquire("target", null);
+        final String other = otherStripe("target");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TargetLock lock = TargetLock.acquire(other, null);
+                lock.release();
+                acquired.countDown();
+            }
+        }).start();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        held.release();
+    }
+
+    @Test
+    public void lockFileIsCreated() {
+        File directory = new File(folder.getRoot(), "locks");
+        TargetLock lock = TargetLock.acquire("target", directory);
+        assertFalse(lock.isContended());
+        assertEquals(1, directory.list().length);
+        lock.release();
+        // released, so available again
+        TargetLock.acquire("target", directory).release();
+    }
+
+    /**
+     * @param target A target.
+     * @return A different target on a different stripe.
+     */
+    private static String otherStripe(final String target) {
+        int stripe = (target.hashCode() & Integer.MAX_VALUE) % TargetLock.STRIPES;
+        for (int i = 0;; i++) {
+            String other = target + i;
+            if ((other.hashCode() & Integer.MAX_VALUE) % TargetLock.STRIPES != stripe) {
+                return other;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Test the summary and description templates.
+ */
+public class TemplateTest {
+
+    private static final Template.Source SOURCE = new Template.Source() {
+        @Override
+        public String get(final Template.Field field) {
+            return field == Template.Field.TRACE ? null : field.name().toLowerCase();
+        }
+    };
+
+    @Test
+    public void placeholdersAreReplaced() {
+        assertEquals("*test* failed in {{class}}\n{code}{code} ${unknown} $",
+                     Template.compile("*${test}* failed in {{${class}}}\n{code}${trace}{code} ${unknown} $")
+                             .render(SOURCE));
+        assertEquals("error: title", Template.compile("${error}: ${title}").render(SOURCE));
+        assertEquals("", Template.compile("").render(SOURCE));
+    }
+
+    @Test
+    public void templatesAreCompiledOnce() {
+        assertSame(Template.compile("${test}"), Template.compile("${test}"));
+    }
+
+}
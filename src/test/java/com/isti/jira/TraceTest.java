@@ -0,0 +1,67 @@
+package com.isti.jira;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test the timing trace.
+ */
+public class TraceTest {
+
+    @Test
+    public void spansFormATree() {
+        Trace trace = new Trace();
+        Trace.Span root = trace.root("report");
+        Trace.Span previous = Trace.resume(root);
+        Trace.Span sync = Trace.start("sync");
+        Trace.start("search").note("issues", 3).end();
+        Trace.start("create").end();
+        sync.end();
+        Trace.start("unpack").end();
+        Trace.resume(previous);
+        root.end();
+        List<Trace.Record> records = Trace.decode(trace.encode());
+        assertEquals(5, records.size());
+        assertEquals("report", records.get(0).getName());
+        assertEquals("sync", records.get(1).getName());
+        assertEquals(1, records.get(1).getDepth());
+        assertEquals("search", records.get(2).getName());
+        assertEquals(2, records.get(2).getDepth());
+        assertEquals("issues=3", records.get(2).getNotes());
+        assertEquals("create", records.get(3).getName());
+        assertEquals("unpack", records.get(4).getName());
+        assertEquals(1, records.get(4).getDepth());
+        assertTrue(records.get(0).getDuration() >= 0);
+    }
+
+    @Test
+    public void nothingIsRecordedOutsideATrace() {
+        assertNull(Trace.current());
+        Trace.Span span = Trace.start("search");
+        span.note("issues", 3).end();
+        assertNull(Trace.current());
+    }
+
+    @Test
+    public void sizeIsLimited() {
+        Trace trace = new Trace();
+        Trace.Span root = trace.root("report");
+        Trace.Span previous = Trace.resume(root);
+        for (int i = 0; i < Trace.MAX_SPANS + 10; i++) {
+            Trace.start("call\t" + i).end();
+        }
+        Trace.resume(previous);
+        root.end();
+        String encoded = trace.encode();
+        assertEquals(Trace.MAX_SPANS, Trace.decode(encoded).size());
+        assertEquals(11, Trace.getOmitted(encoded));
+        assertEquals("call 1", Trace.decode(encoded).get(2).getName());
+    }
+
+}
@@ -8,10 +8,16 @@ import org.junit.Test;
 import org.tap4j.plugin.model.TapTestResultResult;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -38,6 +44,32 @@ public class UniformTestResultTest {
                 "03005379bdeeed81f0a47ed8add8654f73a1cf9b");
     }
 
+    @Test
+    public void renderingIsDeferred() {
+        TapTestResultResult result = mock(TapTestResultResult.class);
+        when(result.getName()).thenReturn("name");
+        when(result.getTitle()).thenReturn("title");
+        when(result.getErrorDetails()).thenReturn("details");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        UniformTestResult uniform = new UniformTestResult(result, logger);
+        verify(result, never()).getTitle();
+        assertTrue(uniform.mentions("title"));
+        assertFalse(uniform.mentions("SkippedException"));
+        verify(result, never()).getName();
+        assertEquals(uniform.getDescription(), "title: details");
+    }
+
+    @Test
+    public void detailsAreWrittenInPieces() throws IOException {
+        TapTestResultResult result = mock(TapTestResultResult.class);
+        when(result.getTitle()).thenReturn("title");
+        when(result.getErrorDetails()).thenReturn("details");
+        Logger logger = new Logger("project", new PrintStream(new ByteArrayOutputStream()), false);
+        StringWriter out = new StringWriter();
+        new UniformTestResult(result, logger).writeDetails(out);
+        assertEquals("title: details", out.toString());
+    }
+
     // this is untestable - CaseResult is a final, closed class with no interface and
     // no public constructor. it can't be mocked and it can't be crated.
 //    @Test